@@ -0,0 +1,49 @@
+package com.github.metagalactic.viewport.benchmark;
+
+import com.github.metagalactic.viewport.ViewportTransform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the translation clamp that runs for both axes on every pan event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ClampBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final float VIEW_SIZE = 1080f;
+
+    private final float[] mTranslations = new float[SAMPLES];
+    private final float[] mContentStarts = new float[SAMPLES];
+    private final float[] mContentEnds = new float[SAMPLES];
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            float contentSize = VIEW_SIZE * (0.5f + random.nextFloat() * 3f);
+            mContentStarts[i] = (VIEW_SIZE - contentSize) * random.nextFloat();
+            mContentEnds[i] = mContentStarts[i] + contentSize;
+            mTranslations[i] = (random.nextFloat() - 0.5f) * 200f;
+        }
+    }
+
+    @Benchmark
+    public float clampTranslation() {
+        int i = mIndex++ & (SAMPLES - 1);
+        return ViewportTransform.getTranslationInBounds(mTranslations[i],
+                mContentStarts[i], mContentEnds[i], 0f, VIEW_SIZE);
+    }
+}
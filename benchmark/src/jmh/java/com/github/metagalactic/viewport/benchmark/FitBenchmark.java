@@ -0,0 +1,50 @@
+package com.github.metagalactic.viewport.benchmark;
+
+import com.github.metagalactic.viewport.ViewportTransform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the fit-center computation used whenever the base matrix is rebuilt.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FitBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    private final int[] mWidths = new int[SAMPLES];
+    private final int[] mHeights = new int[SAMPLES];
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            mWidths[i] = 1 + random.nextInt(8000);
+            mHeights[i] = 1 + random.nextInt(8000);
+        }
+    }
+
+    @Benchmark
+    public void fitCenter(Blackhole blackhole) {
+        int i = mIndex++ & (SAMPLES - 1);
+        float scale = ViewportTransform.getFitCenterScale(mWidths[i], mHeights[i], VIEW_WIDTH, VIEW_HEIGHT);
+        blackhole.consume(scale);
+        blackhole.consume(ViewportTransform.getCenteringTranslation(mWidths[i], VIEW_WIDTH, scale));
+        blackhole.consume(ViewportTransform.getCenteringTranslation(mHeights[i], VIEW_HEIGHT, scale));
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.metagalactic.viewport.benchmark;
+
+import com.github.metagalactic.viewport.ViewportTransform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the scale and focus computations that run on every pinch event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScaleBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final float MAX_SCALE = 3f;
+    private static final float CENTER = 540f;
+
+    private final float[] mFactors = new float[SAMPLES];
+    private final float[] mFocuses = new float[SAMPLES];
+    private float mScale = ViewportTransform.NO_SCALE;
+    private float mTranslation;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            mFactors[i] = 0.9f + random.nextFloat() * 0.2f;
+            mFocuses[i] = random.nextFloat() * CENTER * 2f;
+        }
+    }
+
+    @Benchmark
+    public float newScale() {
+        int i = mIndex++ & (SAMPLES - 1);
+        mScale = ViewportTransform.getNewScale(mScale, mFactors[i], ViewportTransform.NO_SCALE, MAX_SCALE);
+        return mScale;
+    }
+
+    @Benchmark
+    public void scaleAroundFocus(Blackhole blackhole) {
+        int i = mIndex++ & (SAMPLES - 1);
+        float newScale = ViewportTransform.getNewScale(mScale, mFactors[i], ViewportTransform.NO_SCALE, MAX_SCALE);
+        mTranslation = ViewportTransform.getTranslationForFocus(mFocuses[i], CENTER, mTranslation, mScale, newScale);
+        mScale = newScale;
+        blackhole.consume(mTranslation);
+    }
+}
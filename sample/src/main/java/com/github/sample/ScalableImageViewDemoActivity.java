@@ -5,6 +5,8 @@ import android.support.v7.app.AppCompatActivity;
 
 import com.bumptech.glide.Glide;
 import com.github.metagalactic.views.ScalableImageView;
+import com.github.metagalactic.views.glide.ScalableImageViewTarget;
+import com.github.metagalactic.views.glide.SizedModelProvider;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -12,6 +14,9 @@ import java.util.Random;
 
 public class ScalableImageViewDemoActivity extends AppCompatActivity {
 
+    // The image server resizes to the width given in the URL
+    private static final String LOW_RES_WIDTH = "w_720";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -25,9 +30,15 @@ public class ScalableImageViewDemoActivity extends AppCompatActivity {
         List<String> imageStrings = getImageStrings();
         Random rand = new Random();
         int index = rand.nextInt(imageStrings.size());
-        Glide.with(getApplicationContext())
-                .load(imageStrings.get(index))
-                .into(imageView);
+        final String url = imageStrings.get(index);
+
+        // Only download a bigger rendition once the user zooms in
+        ScalableImageViewTarget.load(Glide.with(this), url, new SizedModelProvider<String>() {
+            @Override
+            public String getModel(int width, int height) {
+                return url.replace(LOW_RES_WIDTH, "w_" + width);
+            }
+        }, imageView);
     }
 
     //Sample images from myntra site
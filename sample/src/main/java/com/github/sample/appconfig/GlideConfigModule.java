@@ -9,12 +9,10 @@ import com.bumptech.glide.module.GlideModule;
 
 public class GlideConfigModule implements GlideModule {
 
-    //10% of the original image
-    public static final float SIZE_MULTIPLIER = 0.10f;
-
     @Override
     public void applyOptions(Context context, GlideBuilder builder) {
-        builder.setDecodeFormat(DecodeFormat.PREFER_ARGB_8888);
+        // Opaque images don't need an alpha channel; images with one are still decoded as ARGB_8888
+        builder.setDecodeFormat(DecodeFormat.PREFER_RGB_565);
     }
 
     @Override
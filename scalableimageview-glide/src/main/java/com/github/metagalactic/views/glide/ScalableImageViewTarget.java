@@ -0,0 +1,167 @@
+package com.github.metagalactic.views.glide;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.BitmapImageViewTarget;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.bumptech.glide.request.target.SizeReadyCallback;
+import com.github.metagalactic.views.ResolutionProvider;
+import com.github.metagalactic.views.ScalableImageView;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Loads an image into a {@link ScalableImageView} at the size the view actually shows it at, i.e.
+ * its size minus padding, and only loads it again at a bigger size once the user zooms in far
+ * enough to see the difference. Opaque images are decoded as {@link Bitmap.Config#RGB_565}.
+ * <pre>
+ * ScalableImageViewTarget.load(Glide.with(context), url, imageView);
+ * </pre>
+ *
+ * @param <T> the type of model, e.g. {@link String} for URLs
+ */
+@ParametersAreNonnullByDefault
+public class ScalableImageViewTarget<T> extends BitmapImageViewTarget implements ResolutionProvider {
+
+    private final ScalableImageView mView;
+    private final RequestManager mRequestManager;
+    private final T mModel;
+    @Nullable
+    private final SizedModelProvider<T> mSizedModelProvider;
+    @Nullable
+    private Bitmap mLowResolutionBitmap;
+    @Nullable
+    private HighResolutionTarget mPendingTarget;
+    @Nullable
+    private HighResolutionTarget mShownTarget;
+
+    protected ScalableImageViewTarget(ScalableImageView view,
+                                      RequestManager requestManager,
+                                      T model,
+                                      @Nullable SizedModelProvider<T> sizedModelProvider) {
+        super(view);
+        mView = view;
+        mRequestManager = requestManager;
+        mModel = model;
+        mSizedModelProvider = sizedModelProvider;
+    }
+
+    /**
+     * Loads the model into the view, and loads it again at a bigger size once zoomed in.
+     */
+    public static <T> ScalableImageViewTarget<T> load(RequestManager requestManager,
+                                                      T model,
+                                                      ScalableImageView view) {
+        return load(requestManager, model, null, view);
+    }
+
+    /**
+     * Loads the model into the view. Once zoomed in, the model returned by
+     * {@code sizedModelProvider} for the needed size is loaded instead.
+     */
+    public static <T> ScalableImageViewTarget<T> load(RequestManager requestManager,
+                                                      T model,
+                                                      @Nullable SizedModelProvider<T> sizedModelProvider,
+                                                      ScalableImageView view) {
+        ScalableImageViewTarget<T> target =
+                new ScalableImageViewTarget<>(view, requestManager, model, sizedModelProvider);
+        requestManager.load(model)
+                .asBitmap()
+                .format(DecodeFormat.PREFER_RGB_565)
+                .into(target);
+        return target;
+    }
+
+    @Override
+    public void getSize(final SizeReadyCallback cb) {
+        // Glide 3 sizes view targets including their padding, which the image is never drawn into
+        super.getSize(new SizeReadyCallback() {
+            @Override
+            public void onSizeReady(int width, int height) {
+                cb.onSizeReady(
+                        width > 0 ? Math.max(1, width - mView.getPaddingLeft() - mView.getPaddingRight()) : width,
+                        height > 0 ? Math.max(1, height - mView.getPaddingTop() - mView.getPaddingBottom()) : height);
+            }
+        });
+    }
+
+    @Override
+    public void onLoadStarted(@Nullable Drawable placeholder) {
+        clearHighResolution();
+        super.onLoadStarted(placeholder);
+    }
+
+    @Override
+    public void onLoadCleared(@Nullable Drawable placeholder) {
+        clearHighResolution();
+        mLowResolutionBitmap = null;
+        mView.setResolutionProvider(null);
+        super.onLoadCleared(placeholder);
+    }
+
+    @Override
+    protected void setResource(@Nullable Bitmap resource) {
+        super.setResource(resource);
+        mLowResolutionBitmap = resource;
+        mView.setResolutionProvider(resource != null ? this : null);
+    }
+
+    @Override
+    public void onResolutionRequired(ScalableImageView view, int width, int height) {
+        if (mPendingTarget != null) {
+            Glide.clear(mPendingTarget);
+        }
+        T model = mSizedModelProvider != null ? mSizedModelProvider.getModel(width, height) : mModel;
+        mPendingTarget = mRequestManager.load(model)
+                .asBitmap()
+                .format(DecodeFormat.PREFER_RGB_565)
+                .into(new HighResolutionTarget(width, height));
+    }
+
+    @Override
+    public void onResolutionReleased(ScalableImageView view) {
+        if (mShownTarget != null && mLowResolutionBitmap != null) {
+            // Switch back before clearing, as Glide may reuse the bigger bitmap right away
+            mView.setImageBitmap(mLowResolutionBitmap);
+        }
+        clearHighResolution();
+    }
+
+    private void clearHighResolution() {
+        if (mPendingTarget != null) {
+            Glide.clear(mPendingTarget);
+            mPendingTarget = null;
+        }
+        if (mShownTarget != null) {
+            Glide.clear(mShownTarget);
+            mShownTarget = null;
+        }
+    }
+
+    /**
+     * Swaps the bigger bitmap in, keeping the current scale and pan. Glide may reuse the bitmap of
+     * a cleared target, so the one on screen is only cleared once it has been replaced.
+     */
+    private final class HighResolutionTarget extends SimpleTarget<Bitmap> {
+
+        HighResolutionTarget(int width, int height) {
+            super(width, height);
+        }
+
+        @Override
+        public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
+            mView.setImageBitmap(resource);
+            if (mShownTarget != null) {
+                Glide.clear(mShownTarget);
+            }
+            mShownTarget = this;
+            mPendingTarget = null;
+        }
+    }
+}
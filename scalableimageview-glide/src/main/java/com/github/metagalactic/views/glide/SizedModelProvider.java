@@ -0,0 +1,17 @@
+package com.github.metagalactic.views.glide;
+
+/**
+ * Maps a requested size to the model to load for it, e.g. an image server URL with the width in it.
+ * Without one, the original model is loaded again at the bigger size.
+ *
+ * @param <T> the type of model, e.g. {@link String} for URLs
+ */
+public interface SizedModelProvider<T> {
+
+    /**
+     * @param width  the width the image is needed at
+     * @param height the height the image is needed at
+     * @return the model to load for that size
+     */
+    T getModel(int width, int height);
+}
@@ -0,0 +1,133 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a recorded pan/pinch gesture against a {@link ScalableImageView} and fails if any of the
+ * move events allocate on the heap.
+ */
+public class ScalableImageViewAllocationTest extends InstrumentationTestCase {
+
+    private static final int VIEW_SIZE = 1000;
+    private static final int MOVE_STEPS = 30;
+
+    private int mAllocations;
+    private int mMoveEvents;
+
+    public void testGestureDoesNotAllocate() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ScalableImageView view = createView();
+                List<MotionEvent> gesture = recordGesture();
+
+                // Warm up once so that lazily created framework objects don't count against us
+                replay(view, gesture, false);
+                view.resetScaling();
+
+                Debug.startAllocCounting();
+                try {
+                    replay(view, gesture, true);
+                } finally {
+                    Debug.stopAllocCounting();
+                }
+
+                for (MotionEvent event : gesture) {
+                    event.recycle();
+                }
+            }
+        });
+
+        assertTrue("Gesture did not contain any move events", mMoveEvents > 0);
+        assertEquals("Allocations during " + mMoveEvents + " move events", 0, mAllocations);
+    }
+
+    private ScalableImageView createView() {
+        FrameLayout parent = new FrameLayout(getInstrumentation().getTargetContext());
+        ScalableImageView view = new ScalableImageView(getInstrumentation().getTargetContext());
+        view.setImageBitmap(Bitmap.createBitmap(VIEW_SIZE / 2, VIEW_SIZE / 4, Bitmap.Config.RGB_565));
+        parent.addView(view);
+
+        int spec = View.MeasureSpec.makeMeasureSpec(VIEW_SIZE, View.MeasureSpec.EXACTLY);
+        parent.measure(spec, spec);
+        parent.layout(0, 0, VIEW_SIZE, VIEW_SIZE);
+        return view;
+    }
+
+    private void replay(ScalableImageView view, List<MotionEvent> gesture, boolean count) {
+        mAllocations = 0;
+        mMoveEvents = 0;
+        for (MotionEvent event : gesture) {
+            boolean isMove = event.getActionMasked() == MotionEvent.ACTION_MOVE;
+            int before = isMove ? Debug.getThreadAllocCount() : 0;
+            view.dispatchTouchEvent(event);
+            if (count && isMove) {
+                mAllocations += Debug.getThreadAllocCount() - before;
+                mMoveEvents++;
+            }
+        }
+    }
+
+    /**
+     * Builds a two finger pinch-out followed by a single finger pan. All events are obtained up
+     * front so that the replay itself only measures the view.
+     */
+    private static List<MotionEvent> recordGesture() {
+        List<MotionEvent> events = new ArrayList<>();
+        long downTime = SystemClock.uptimeMillis();
+        long time = downTime;
+        float center = VIEW_SIZE / 2f;
+        float span = 50f;
+
+        events.add(obtain(downTime, time, MotionEvent.ACTION_DOWN, center - span, center, center + span, center, 1));
+        time += 10;
+        events.add(obtain(downTime, time, MotionEvent.ACTION_POINTER_DOWN
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), center - span, center, center + span, center, 2));
+        for (int i = 0; i < MOVE_STEPS; i++) {
+            span += 10f;
+            time += 8;
+            events.add(obtain(downTime, time, MotionEvent.ACTION_MOVE, center - span, center, center + span, center, 2));
+        }
+        time += 8;
+        events.add(obtain(downTime, time, MotionEvent.ACTION_POINTER_UP
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), center - span, center, center + span, center, 2));
+
+        float x = center - span;
+        for (int i = 0; i < MOVE_STEPS; i++) {
+            x += 12f;
+            time += 8;
+            events.add(obtain(downTime, time, MotionEvent.ACTION_MOVE, x, center + i, 0f, 0f, 1));
+        }
+        time += 8;
+        events.add(obtain(downTime, time, MotionEvent.ACTION_UP, x, center, 0f, 0f, 1));
+        return events;
+    }
+
+    private static MotionEvent obtain(long downTime, long eventTime, int action,
+                                      float x0, float y0, float x1, float y1, int pointerCount) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[pointerCount];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = i == 0 ? x0 : x1;
+            coords[i].y = i == 0 ? y0 : y1;
+            coords[i].pressure = 1f;
+            coords[i].size = 1f;
+        }
+        return MotionEvent.obtain(downTime, eventTime, action, pointerCount, properties, coords,
+                0, 0, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A pool of mutable bitmaps keyed by width, height and config so that they can be handed to
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new pixel memory.
+ * The pool is bounded by the total byte count of the bitmaps it holds; bitmaps that don't fit are
+ * recycled. All methods are thread safe.
+ */
+@ParametersAreNonnullByDefault
+final class BitmapPool {
+
+    private final Map<Key, ArrayDeque<Bitmap>> mBitmaps = new HashMap<>();
+    private final Key mLookupKey = new Key();
+    private final long mMaxSizeBytes;
+
+    private long mSizeBytes;
+
+    BitmapPool(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Removes and returns a bitmap with exactly the given dimensions and config, if one is
+     * available.
+     */
+    @Nullable
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(mLookupKey.set(width, height, config));
+        Bitmap bitmap = bitmaps != null ? bitmaps.poll() : null;
+        if (bitmap != null) {
+            mSizeBytes -= bitmap.getByteCount();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Offers a bitmap that is no longer used to the pool. The bitmap is recycled if it can't be
+     * reused or if the pool is full.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+
+        int byteCount = bitmap.getByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || mSizeBytes + byteCount > mMaxSizeBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        Key key = mLookupKey.set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBitmaps.put(new Key().set(key.width, key.height, key.config), bitmaps);
+        }
+        bitmaps.offer(bitmap);
+        mSizeBytes += byteCount;
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     */
+    synchronized void clear() {
+        for (ArrayDeque<Bitmap> bitmaps : mBitmaps.values()) {
+            for (Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+        }
+        mBitmaps.clear();
+        mSizeBytes = 0;
+    }
+
+    synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    private static final class Key {
+        int width;
+        int height;
+        Bitmap.Config config;
+
+        Key set(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return width == key.width && height == key.height && config == key.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * width + height) + config.hashCode();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.metagalactic.views;
+
+import android.support.annotation.NonNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Reads a direct or memory-mapped buffer as a stream. Every read copies the requested bytes into
+ * the caller's array, e.g. the read buffer of {@code BitmapFactory}, so the content passes through
+ * the heap a buffer at a time instead of as a whole. Reading advances the position of the buffer,
+ * so pass a {@link ByteBuffer#duplicate() duplicate} of a shared one.
+ */
+@ParametersAreNonnullByDefault
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(@NonNull byte[] bytes, int offset, int length) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        length = Math.min(length, mBuffer.remaining());
+        mBuffer.get(bytes, offset, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.min(Math.max(count, 0L), mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+}
@@ -0,0 +1,295 @@
+package com.github.metagalactic.views;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.PictureDrawable;
+import android.graphics.drawable.VectorDrawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.graphics.drawable.VectorDrawableCompat;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Keeps bitmaps of a vector or picture drawable rasterized at the scales it was recently shown at,
+ * so that {@link ScalableImageView} neither redraws its paths every frame nor magnifies a
+ * rasterization made for a smaller scale.
+ * <p>
+ * Scales are rounded up to buckets of half an octave, and rasterizing runs on the
+ * {@link TileDecodeScheduler}, on a copy of the drawable. While no bitmap of the exact bucket is
+ * available, the closest one is drawn scaled by the canvas. Must only be used on the main thread.
+ */
+@ParametersAreNonnullByDefault
+final class DrawableRasterizer {
+
+    private static final String TAG = DrawableRasterizer.class.getSimpleName();
+
+    /**
+     * Number of scale buckets per doubling of the scale
+     */
+    private static final float BUCKETS_PER_OCTAVE = 2f;
+
+    /**
+     * Longest side of a rasterized bitmap. Beyond that the bitmap is magnified again.
+     */
+    private static final int MAX_RASTER_SIZE = 4096;
+
+    /**
+     * The share of the heap the rasterized bitmaps of one view may use
+     */
+    private static final int MEMORY_DIVISOR = 16;
+
+    private static final float RASTER_PRIORITY = 0f;
+
+    private final View mHost;
+    private final Resources mResources;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final TileDecodeScheduler mScheduler = TileDecodeScheduler.getInstance();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final LruCache<Integer, Bitmap> mBitmaps;
+    // The cached bitmaps sorted by bucket, so that finding the closest one neither allocates nor
+    // counts as an access
+    private final SparseArray<Bitmap> mBitmapsByBucket = new SparseArray<>();
+
+    @Nullable
+    private Drawable mDrawable;
+    // The color filter of the drawable the bitmaps were rasterized with
+    @Nullable
+    private ColorFilter mColorFilter;
+    @Nullable
+    private TileDecodeScheduler.Task mPendingTask;
+    private int mPendingBucket;
+    // Bumped whenever the drawable or its content changes, so that late results are dropped
+    private int mGeneration;
+
+    DrawableRasterizer(View host) {
+        mHost = host;
+        mResources = host.getResources();
+        long maxSizeBytes = Runtime.getRuntime().maxMemory() / MEMORY_DIVISOR;
+        mBitmaps = new LruCache<Integer, Bitmap>((int) Math.min(Integer.MAX_VALUE, maxSizeBytes)) {
+            @Override
+            protected int sizeOf(Integer bucket, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer bucket, Bitmap oldBitmap,
+                    @Nullable Bitmap newBitmap) {
+                if (newBitmap == null) {
+                    mBitmapsByBucket.remove(bucket);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return whether the drawable is drawn from paths and worth rasterizing
+     */
+    static boolean canRasterize(@Nullable Drawable drawable) {
+        return drawable instanceof PictureDrawable
+                || drawable instanceof VectorDrawableCompat
+                || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && drawable instanceof VectorDrawable);
+    }
+
+    /**
+     * Sets the drawable to rasterize. Bitmaps of a previous drawable are dropped.
+     */
+    void setDrawable(@Nullable Drawable drawable) {
+        if (drawable != mDrawable) {
+            mDrawable = drawable;
+            invalidate();
+        }
+    }
+
+    /**
+     * Drops all bitmaps, e.g. because the drawable changed its content.
+     */
+    void invalidate() {
+        mGeneration++;
+        cancelPending();
+        // Not recycled, the last frame may still reference them
+        mBitmaps.evictAll();
+    }
+
+    long getSizeBytes() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * Draws the drawable from a rasterized bitmap. The canvas must be in drawable coordinates.
+     *
+     * @param scale         the number of screen pixels per drawable pixel
+     * @param isLowCostMode whether to only draw what is available instead of rasterizing anew
+     * @return whether anything was drawn. If not, the drawable has to be drawn directly.
+     */
+    boolean draw(Canvas canvas, float scale, boolean isLowCostMode) {
+        Drawable drawable = mDrawable;
+        if (drawable == null || drawable.getBounds().isEmpty() || scale <= 0f) {
+            return false;
+        }
+
+        ColorFilter colorFilter = getColorFilter(drawable);
+        if (colorFilter != mColorFilter) {
+            // The filter replaces the tint, so it has to be part of the rasterized bitmaps
+            invalidate();
+            mColorFilter = colorFilter;
+        }
+
+        int bucket = getBucket(scale);
+        Bitmap bitmap = mBitmaps.get(bucket);
+        if (bitmap == null) {
+            if (!isLowCostMode) {
+                rasterize(drawable, bucket);
+            }
+            bitmap = getClosestBitmap(bucket);
+            if (bitmap == null) {
+                return false;
+            }
+        }
+
+        // Tint and color filter are already part of the copy the bitmap was drawn from, the alpha
+        // is applied here
+        mPaint.setAlpha(getAlpha(drawable));
+        mPaint.setFilterBitmap(!isLowCostMode);
+        canvas.drawBitmap(bitmap, null, drawable.getBounds(), mPaint);
+        return true;
+    }
+
+    private void rasterize(Drawable drawable, final int bucket) {
+        if (mPendingTask != null) {
+            if (mPendingBucket == bucket) {
+                return;
+            }
+            cancelPending();
+        }
+
+        final Drawable copy = copy(drawable);
+        if (copy == null) {
+            return;
+        }
+        // The color filter is set on the instance rather than its constant state, so the copy
+        // doesn't have it. The alpha is applied when drawing the bitmap instead.
+        copy.setColorFilter(mColorFilter);
+        copy.setAlpha(0xFF);
+
+        Rect bounds = drawable.getBounds();
+        float scale = (float) Math.pow(2.0, bucket / BUCKETS_PER_OCTAVE);
+        scale = Math.min(scale, MAX_RASTER_SIZE / (float) Math.max(bounds.width(), bounds.height()));
+        final int width = Math.max(1, Math.round(bounds.width() * scale));
+        final int height = Math.max(1, Math.round(bounds.height() * scale));
+        copy.setBounds(0, 0, bounds.width(), bounds.height());
+
+        final int generation = mGeneration;
+        mPendingBucket = bucket;
+        mPendingTask = new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                final TileDecodeScheduler.Task self = this;
+                final Bitmap bitmap = draw(copy, width, height);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPendingTask == self) {
+                            mPendingTask = null;
+                        }
+                        if (bitmap != null && generation == mGeneration) {
+                            // Before the put, which may evict the bitmap again right away
+                            mBitmapsByBucket.put(bucket, bitmap);
+                            mBitmaps.put(bucket, bitmap);
+                            mHost.invalidate();
+                        }
+                    }
+                });
+            }
+        };
+        mScheduler.submit(mPendingTask, RASTER_PRIORITY);
+    }
+
+    private void cancelPending() {
+        if (mPendingTask != null) {
+            mScheduler.cancel(mPendingTask);
+            mPendingTask = null;
+        }
+    }
+
+    /**
+     * @return the bitmap of the finest bucket not above the given one, else of the coarsest bucket
+     * above it
+     */
+    @Nullable
+    private Bitmap getClosestBitmap(int bucket) {
+        int count = mBitmapsByBucket.size();
+        if (count == 0) {
+            return null;
+        }
+        // Only a handful of buckets fit, so a scan is cheap
+        int above = 0;
+        while (above < count && mBitmapsByBucket.keyAt(above) <= bucket) {
+            above++;
+        }
+        return mBitmapsByBucket.valueAt(above > 0 ? above - 1 : 0);
+    }
+
+    /**
+     * Creates an independent copy of the drawable, so that it can be drawn on another thread.
+     */
+    @Nullable
+    private Drawable copy(Drawable drawable) {
+        if (drawable instanceof PictureDrawable) {
+            Picture picture = ((PictureDrawable) drawable).getPicture();
+            return picture != null ? new PictureDrawable(new Picture(picture)) : null;
+        }
+        Drawable.ConstantState state = drawable.getConstantState();
+        return state != null ? state.newDrawable(mResources).mutate() : null;
+    }
+
+    @Nullable
+    private static ColorFilter getColorFilter(Drawable drawable) {
+        if (drawable instanceof VectorDrawableCompat) {
+            // Available on all platforms
+            return ((VectorDrawableCompat) drawable).getColorFilter();
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? drawable.getColorFilter() : null;
+    }
+
+    private static int getAlpha(Drawable drawable) {
+        if (drawable instanceof VectorDrawableCompat) {
+            return ((VectorDrawableCompat) drawable).getAlpha();
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? drawable.getAlpha() : 0xFF;
+    }
+
+    @Nullable
+    private static Bitmap draw(Drawable drawable, int width, int height) {
+        try {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            Rect bounds = drawable.getBounds();
+            canvas.scale(width / (float) bounds.width(), height / (float) bounds.height());
+            drawable.draw(canvas);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Failed to rasterize " + drawable, e);
+            return null;
+        }
+    }
+
+    /**
+     * Rounds a scale up to its bucket, so that the bitmap is never magnified within a bucket.
+     */
+    private static int getBucket(float scale) {
+        return (int) Math.ceil(Math.log(scale) / Math.log(2.0) * BUCKETS_PER_OCTAVE - 1e-3);
+    }
+}
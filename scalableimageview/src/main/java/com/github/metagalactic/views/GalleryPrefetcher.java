@@ -0,0 +1,281 @@
+package com.github.metagalactic.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Binds the pages of a {@code ViewPager} or {@code RecyclerView} gallery to recycled
+ * {@link ScalableImageView}s, and decodes the pages next to the bound ones ahead of time at
+ * fit-center resolution, so that swiping shows a ready image instead of a blank frame.
+ * <p>
+ * Call {@link #bind(ScalableImageView, int)} from the adapter whenever a view is bound to a page,
+ * and {@link #unbind(ScalableImageView)} when it is recycled. Decodes run on the same workers as
+ * the tile decodes of the views, after the tiles that are visible. Prefetched pages count towards
+ * the {@link ScalableImageView#setImageMemoryBudget image memory budget} and are dropped first when
+ * over it. Must only be used on the main thread.
+ */
+@ParametersAreNonnullByDefault
+public class GalleryPrefetcher {
+
+    private static final String TAG = GalleryPrefetcher.class.getSimpleName();
+
+    /**
+     * Number of pages to prefetch on either side of a bound page
+     */
+    private static final int PREFETCH_DISTANCE = 1;
+
+    /**
+     * The bound page, both neighbors, and one more on either side for swiping back and forth
+     */
+    private static final int CACHED_PAGE_COUNT = 2 * PREFETCH_DISTANCE + 3;
+
+    /**
+     * A bound page is decoded right away, prefetched pages after any visible tile
+     */
+    private static final float BOUND_PRIORITY = -1f;
+    private static final float PREFETCH_PRIORITY = 1000f;
+
+    private final Context mContext;
+    private final SourceProvider mProvider;
+    private final TileDecodeScheduler mScheduler = TileDecodeScheduler.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Evicted pages aren't recycled, a view may still show them
+    private final LruCache<Integer, Bitmap> mPages = new LruCache<>(CACHED_PAGE_COUNT);
+    private final SparseArray<TileDecodeScheduler.Task> mPendingTasks = new SparseArray<>();
+    private final Map<ScalableImageView, Integer> mBoundViews = new WeakHashMap<>();
+    private final ImageMemoryCoordinator mMemoryCoordinator;
+
+    private int mTargetWidth;
+    private int mTargetHeight;
+
+    public GalleryPrefetcher(Context context, SourceProvider provider) {
+        mContext = context.getApplicationContext();
+        mProvider = provider;
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mTargetWidth = metrics.widthPixels;
+        mTargetHeight = metrics.heightPixels;
+        mMemoryCoordinator = ImageMemoryCoordinator.getInstance(context);
+        mMemoryCoordinator.register(mPageCache);
+    }
+
+    /**
+     * Recycles the view and shows the page at the given position in it: right away if the page was
+     * prefetched, else as soon as it is decoded. The neighbors of the page are prefetched.
+     */
+    public void bind(ScalableImageView view, int position) {
+        view.recycle();
+        mBoundViews.put(view, position);
+        if (view.getWidth() > 0 && view.getHeight() > 0) {
+            // All pages of a gallery share one size, the latest laid out view is as good as any
+            mTargetWidth = ScalableImageView.getViewWidthMinusPadding(view);
+            mTargetHeight = ScalableImageView.getViewHeightMinusPadding(view);
+        }
+
+        Bitmap page = mPages.get(position);
+        if (page != null) {
+            view.setImageBitmap(page);
+        } else {
+            decode(position, BOUND_PRIORITY);
+        }
+
+        for (int offset = 1; offset <= PREFETCH_DISTANCE; offset++) {
+            prefetch(position - offset);
+            prefetch(position + offset);
+        }
+        cancelDistantDecodes();
+    }
+
+    /**
+     * Recycles a view that no longer shows a page.
+     */
+    public void unbind(ScalableImageView view) {
+        mBoundViews.remove(view);
+        view.recycle();
+    }
+
+    /**
+     * Cancels all decodes and drops all prefetched pages, e.g. once the gallery content changes.
+     */
+    public void clear() {
+        for (int i = 0, size = mPendingTasks.size(); i < size; i++) {
+            mScheduler.cancel(mPendingTasks.valueAt(i));
+        }
+        mPendingTasks.clear();
+        mPages.evictAll();
+    }
+
+    private void prefetch(int position) {
+        if (position >= 0 && position < mProvider.getCount() && mPages.get(position) == null) {
+            decode(position, PREFETCH_PRIORITY);
+        }
+    }
+
+    private void decode(final int position, float priority) {
+        TileDecodeScheduler.Task pending = mPendingTasks.get(position);
+        if (pending != null) {
+            mScheduler.updatePriority(pending, priority);
+            return;
+        }
+
+        final ImageSource source = mProvider.getSource(position);
+        if (source == null) {
+            return;
+        }
+
+        final int targetWidth = mTargetWidth;
+        final int targetHeight = mTargetHeight;
+        TileDecodeScheduler.Task task = new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                final TileDecodeScheduler.Task self = this;
+                final Bitmap bitmap = decodeFitCenter(source, targetWidth, targetHeight);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageDecoded(position, self, bitmap);
+                    }
+                });
+            }
+        };
+        mPendingTasks.put(position, task);
+        mScheduler.submit(task, priority);
+    }
+
+    private void onPageDecoded(int position, TileDecodeScheduler.Task task, @Nullable Bitmap bitmap) {
+        if (mPendingTasks.get(position) != task) {
+            // Cancelled after it finished, the page is either far away or being decoded again
+            return;
+        }
+        mPendingTasks.remove(position);
+        if (bitmap == null) {
+            return;
+        }
+
+        mPages.put(position, bitmap);
+        mMemoryCoordinator.onMemoryChanged();
+        for (Map.Entry<ScalableImageView, Integer> entry : mBoundViews.entrySet()) {
+            ScalableImageView view = entry.getKey();
+            // Unless the app already set something else
+            if (view != null && entry.getValue() == position && view.getDrawable() == null) {
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+
+    private final ImageMemoryCoordinator.ImageCache mPageCache = new ImageMemoryCoordinator.ImageCache() {
+        @Override
+        public long getImageMemoryBytes() {
+            long bytes = 0L;
+            for (Map.Entry<Integer, Bitmap> page : mPages.snapshot().entrySet()) {
+                // Bound pages are counted by the views showing them
+                if (!mBoundViews.containsValue(page.getKey())) {
+                    bytes += page.getValue().getByteCount();
+                }
+            }
+            return bytes;
+        }
+
+        @Override
+        public long trimImageMemory() {
+            long before = getImageMemoryBytes();
+            mPages.evictAll();
+            return before;
+        }
+    };
+
+    /**
+     * Cancels the decodes of pages that are neither bound nor next to a bound page anymore.
+     */
+    private void cancelDistantDecodes() {
+        for (int i = mPendingTasks.size() - 1; i >= 0; i--) {
+            int position = mPendingTasks.keyAt(i);
+            if (!isNearBoundPage(position)) {
+                mScheduler.cancel(mPendingTasks.valueAt(i));
+                mPendingTasks.removeAt(i);
+            }
+        }
+    }
+
+    private boolean isNearBoundPage(int position) {
+        for (Integer boundPosition : mBoundViews.values()) {
+            if (boundPosition != null && Math.abs(boundPosition - position) <= PREFETCH_DISTANCE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes the whole image at the largest power of two sample size that still covers the target
+     * size when fitted, in its EXIF orientation.
+     */
+    @Nullable
+    private Bitmap decodeFitCenter(ImageSource source, int targetWidth, int targetHeight) {
+        try {
+            ImageHeader header = source.readHeader(mContext);
+            boolean isTransposed = ImageHeader.isTransposed(header.orientation);
+            int width = isTransposed ? header.height : header.width;
+            int height = isTransposed ? header.width : header.height;
+            float fitScale = Math.min(targetWidth / (float) width, targetHeight / (float) height);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = 1;
+            while (options.inSampleSize * 2 * fitScale <= 1f) {
+                options.inSampleSize *= 2;
+            }
+
+            Bitmap bitmap;
+            InputStream stream = source.openStream(mContext);
+            try {
+                bitmap = BitmapFactory.decodeStream(stream, null, options);
+            } finally {
+                stream.close();
+            }
+            if (bitmap == null || header.orientation == ExifInterface.ORIENTATION_NORMAL) {
+                return bitmap;
+            }
+
+            Matrix matrix = new Matrix();
+            ImageHeader.setOrientationMatrix(matrix, header.orientation, bitmap.getWidth(), bitmap.getHeight());
+            Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (oriented != bitmap) {
+                bitmap.recycle();
+            }
+            return oriented;
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e(TAG, "Failed to prefetch " + source, e);
+            return null;
+        }
+    }
+
+    /**
+     * Supplies the images of the gallery.
+     */
+    public interface SourceProvider {
+
+        int getCount();
+
+        /**
+         * @return the image of the page at the position, or {@code null} to leave the page empty
+         */
+        @Nullable
+        ImageSource getSource(int position);
+    }
+}
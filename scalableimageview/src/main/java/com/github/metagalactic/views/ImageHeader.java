@@ -0,0 +1,82 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.support.media.ExifInterface;
+
+/**
+ * What is known about an {@link ImageSource} before any of its pixels are decoded: its size as
+ * stored, and the EXIF orientation it should be shown in.
+ */
+final class ImageHeader {
+
+    final int width;
+    final int height;
+    final int orientation;
+
+    ImageHeader(int width, int height, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Sets a matrix that maps stored image coordinates to oriented image coordinates, with the
+     * oriented image starting at the origin.
+     *
+     * @param matrix      the matrix to set
+     * @param orientation one of the {@code ExifInterface.ORIENTATION_*} values
+     * @param width       the stored image width
+     * @param height      the stored image height
+     */
+    static void setOrientationMatrix(Matrix matrix, int orientation, int width, int height) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1f, 1f);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180f);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1f, -1f);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90f);
+                matrix.postScale(-1f, 1f);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90f);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90f);
+                matrix.postScale(-1f, 1f);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90f);
+                break;
+            default:
+                matrix.reset();
+                return;
+        }
+
+        // Move the oriented image back to the origin
+        RectF bounds = new RectF(0f, 0f, width, height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+    }
+
+    /**
+     * @return whether the orientation swaps the width and height of the image
+     */
+    static boolean isTransposed(int orientation) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
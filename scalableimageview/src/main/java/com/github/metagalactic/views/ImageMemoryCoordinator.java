@@ -0,0 +1,208 @@
+package com.github.metagalactic.views;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Keeps the image memory of all attached {@link ScalableImageView}s within one global budget, and
+ * sheds it step by step as the system reports memory pressure instead of waiting for an
+ * {@link OutOfMemoryError}.
+ * <p>
+ * Views are trimmed from the least to the most important: off-screen views first, then on-screen
+ * views that aren't zoomed, and the zoomed on-screen view last. Trimming drops decoded tiles and
+ * hands a higher resolution source back to its {@link ResolutionProvider}, so the view falls back
+ * to its low resolution source. {@link ImageCache}s that hold images for views ahead of time count
+ * towards the budget too, and are dropped before any view is trimmed.
+ * <p>
+ * Must only be used on the main thread.
+ */
+@ParametersAreNonnullByDefault
+final class ImageMemoryCoordinator implements ComponentCallbacks2 {
+
+    /**
+     * Nothing to trim
+     */
+    static final int TRIM_NONE = 0;
+
+    /**
+     * Off-screen views release everything they can
+     */
+    static final int TRIM_OFF_SCREEN = 1;
+
+    /**
+     * Additionally, on-screen views release cached tiles they haven't drawn recently
+     */
+    static final int TRIM_CACHES = 2;
+
+    /**
+     * Additionally, on-screen views that aren't zoomed fall back to their low resolution source
+     */
+    static final int TRIM_ALL_BUT_ZOOMED = 3;
+
+    /**
+     * The share of the heap all views may use for their images together
+     */
+    private static final int MEMORY_BUDGET_DIVISOR = 4;
+
+    private static ImageMemoryCoordinator sInstance;
+
+    private final List<ScalableImageView> mViews = new ArrayList<>();
+    // Caches have no lifecycle to unregister them in, so they are held weakly
+    private final Set<ImageCache> mCaches = Collections.newSetFromMap(new WeakHashMap<ImageCache, Boolean>());
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mBudgetBytes = Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_DIVISOR;
+    private boolean mIsEnforcePending;
+
+    private ImageMemoryCoordinator() {
+    }
+
+    static ImageMemoryCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageMemoryCoordinator();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    void register(ScalableImageView view) {
+        if (!mViews.contains(view)) {
+            mViews.add(view);
+            onMemoryChanged();
+        }
+    }
+
+    void unregister(ScalableImageView view) {
+        mViews.remove(view);
+    }
+
+    /**
+     * Counts the cache towards the budget until it is garbage collected.
+     */
+    void register(ImageCache cache) {
+        mCaches.add(cache);
+        onMemoryChanged();
+    }
+
+    void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        onMemoryChanged();
+    }
+
+    /**
+     * Schedules a budget check. Cheap enough to call whenever a view decodes or swaps an image;
+     * checks are coalesced until the next main thread message.
+     */
+    void onMemoryChanged() {
+        if (!mIsEnforcePending) {
+            mIsEnforcePending = true;
+            mMainHandler.post(mEnforceBudget);
+        }
+    }
+
+    private final Runnable mEnforceBudget = new Runnable() {
+        @Override
+        public void run() {
+            mIsEnforcePending = false;
+            enforceBudget();
+        }
+    };
+
+    private void enforceBudget() {
+        long total = 0L;
+        for (int i = 0; i < mViews.size(); i++) {
+            total += mViews.get(i).getImageMemoryBytes();
+        }
+        for (ImageCache cache : mCaches) {
+            total += cache.getImageMemoryBytes();
+        }
+
+        // Cached images aren't shown yet, so they are the cheapest to lose
+        for (ImageCache cache : mCaches) {
+            if (total <= mBudgetBytes) {
+                break;
+            }
+            total -= cache.trimImageMemory();
+        }
+
+        for (int level = TRIM_OFF_SCREEN; level <= TRIM_ALL_BUT_ZOOMED && total > mBudgetBytes; level++) {
+            for (int priority = ScalableImageView.MEMORY_PRIORITY_OFF_SCREEN;
+                 priority <= ScalableImageView.MEMORY_PRIORITY_ZOOMED && total > mBudgetBytes;
+                 priority++) {
+                for (int i = 0; i < mViews.size() && total > mBudgetBytes; i++) {
+                    ScalableImageView view = mViews.get(i);
+                    if (view.getMemoryPriority() == priority) {
+                        total -= view.trimImageMemory(level);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int trimLevel = getTrimLevel(level);
+        if (trimLevel == TRIM_NONE) {
+            return;
+        }
+        for (ImageCache cache : mCaches) {
+            cache.trimImageMemory();
+        }
+        for (int i = 0; i < mViews.size(); i++) {
+            mViews.get(i).trimImageMemory(trimLevel);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Not interested
+    }
+
+    private static int getTrimLevel(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // The process is likely to be killed soon
+            return TRIM_ALL_BUT_ZOOMED;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Includes TRIM_MEMORY_UI_HIDDEN and TRIM_MEMORY_BACKGROUND
+            return TRIM_CACHES;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return TRIM_OFF_SCREEN;
+        }
+        return TRIM_NONE;
+    }
+
+    /**
+     * Images decoded for views that don't show them yet.
+     */
+    interface ImageCache {
+
+        /**
+         * @return the size of the images that no registered view accounts for already
+         */
+        long getImageMemoryBytes();
+
+        /**
+         * Drops those images.
+         *
+         * @return the number of bytes released
+         */
+        long trimImageMemory();
+    }
+}
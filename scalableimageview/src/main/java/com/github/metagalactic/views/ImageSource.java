@@ -0,0 +1,280 @@
+package com.github.metagalactic.views;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * An encoded image that {@link ScalableImageView} decodes by itself, lazily and region by region,
+ * instead of a finished drawable. Only the header is read up front, for the size and EXIF
+ * orientation, so the view can lay out and fit the image before any pixel is decoded.
+ * <p>
+ * Regions are decoded straight from the source where possible: files, content URIs and assets are
+ * read through their file descriptor or asset stream, and byte arrays are used in place. Direct
+ * buffers are streamed to the decoder, which keeps its copy in native memory, not the Java heap.
+ *
+ * @see ScalableImageView#setImageSource(ImageSource)
+ */
+@ParametersAreNonnullByDefault
+public abstract class ImageSource {
+
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    private ImageSource() {
+    }
+
+    /**
+     * @param file an image file
+     */
+    public static ImageSource file(File file) {
+        return new FileSource(file);
+    }
+
+    /**
+     * @param uri a {@code content://}, {@code file://} or {@code android.resource://} URI
+     */
+    public static ImageSource uri(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return new FileSource(new File(uri.getPath()));
+        }
+        return new UriSource(uri);
+    }
+
+    /**
+     * @param assetName the path of an image in the app's assets
+     */
+    public static ImageSource asset(String assetName) {
+        return new AssetSource(assetName);
+    }
+
+    /**
+     * @param bytes an encoded image. The array is used in place and must not be modified afterwards.
+     */
+    public static ImageSource bytes(byte[] bytes) {
+        return new BytesSource(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param buffer an encoded image, between the position and the limit of the buffer. The content
+     *               is used in place and must not be modified afterwards.
+     */
+    public static ImageSource byteBuffer(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new BytesSource(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferSource(buffer.duplicate());
+    }
+
+    /**
+     * Opens a stream over the encoded image. The caller closes it.
+     */
+    abstract InputStream openStream(Context context) throws IOException;
+
+    /**
+     * Creates a region decoder for the image. Runs on a worker thread.
+     */
+    BitmapRegionDecoder newRegionDecoder(Context context) throws IOException {
+        InputStream stream = openStream(context);
+        try {
+            return BitmapRegionDecoder.newInstance(stream, false);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return a key that identifies the current content of the source across app restarts, or
+     * {@code null} if there is none
+     */
+    @Nullable
+    String getCacheKey() {
+        return null;
+    }
+
+    /**
+     * Reads the size and orientation of the image without decoding any pixels.
+     *
+     * @throws IOException if the source can't be read or isn't a supported image
+     */
+    final ImageHeader readHeader(Context context) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream stream = openStream(context);
+        try {
+            BitmapFactory.decodeStream(stream, null, options);
+        } finally {
+            stream.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a decodable image: " + this);
+        }
+
+        // Only JPEGs carry an orientation in practice, and parsing others may read far into them
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        if (MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            stream = openStream(context);
+            try {
+                orientation = new ExifInterface(stream).getAttributeInt(
+                        ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            } finally {
+                stream.close();
+            }
+        }
+        return new ImageHeader(options.outWidth, options.outHeight, orientation);
+    }
+
+    private static final class FileSource extends ImageSource {
+
+        private final File mFile;
+
+        FileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        InputStream openStream(Context context) throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder(Context context) throws IOException {
+            return BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+        }
+
+        @Nullable
+        @Override
+        String getCacheKey() {
+            return TilePyramidCache.getKey(mFile);
+        }
+
+        @Override
+        public String toString() {
+            return mFile.toString();
+        }
+    }
+
+    private static final class UriSource extends ImageSource {
+
+        private final Uri mUri;
+
+        UriSource(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        InputStream openStream(Context context) throws IOException {
+            InputStream stream = context.getContentResolver().openInputStream(mUri);
+            if (stream == null) {
+                throw new FileNotFoundException("No content at " + mUri);
+            }
+            return stream;
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder(Context context) throws IOException {
+            ParcelFileDescriptor descriptor;
+            try {
+                descriptor = context.getContentResolver().openFileDescriptor(mUri, "r");
+            } catch (FileNotFoundException e) {
+                // Not backed by a file, e.g. piped from another process
+                descriptor = null;
+            }
+            if (descriptor == null) {
+                return super.newRegionDecoder(context);
+            }
+            try {
+                // The decoder keeps its own duplicate of the descriptor
+                return BitmapRegionDecoder.newInstance(descriptor.getFileDescriptor(), false);
+            } finally {
+                descriptor.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mUri.toString();
+        }
+    }
+
+    private static final class AssetSource extends ImageSource {
+
+        private final String mAssetName;
+
+        AssetSource(String assetName) {
+            mAssetName = assetName;
+        }
+
+        @Override
+        InputStream openStream(Context context) throws IOException {
+            // Region decoders read asset streams in place, without buffering them
+            return context.getAssets().open(mAssetName);
+        }
+
+        @Override
+        public String toString() {
+            return "asset:" + mAssetName;
+        }
+    }
+
+    private static final class BytesSource extends ImageSource {
+
+        private final byte[] mBytes;
+        private final int mOffset;
+        private final int mLength;
+
+        BytesSource(byte[] bytes, int offset, int length) {
+            mBytes = bytes;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        InputStream openStream(Context context) {
+            return new ByteArrayInputStream(mBytes, mOffset, mLength);
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder(Context context) throws IOException {
+            return BitmapRegionDecoder.newInstance(mBytes, mOffset, mLength, false);
+        }
+
+        @Override
+        public String toString() {
+            return "bytes:" + mLength;
+        }
+    }
+
+    private static final class ByteBufferSource extends ImageSource {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        InputStream openStream(Context context) {
+            return new ByteBufferInputStream(mBuffer.duplicate());
+        }
+
+        @Override
+        public String toString() {
+            return "buffer:" + mBuffer.remaining();
+        }
+    }
+}
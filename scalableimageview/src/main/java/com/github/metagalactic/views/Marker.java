@@ -0,0 +1,48 @@
+package com.github.metagalactic.views;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A point of interest on the image shown in a {@link ScalableImageView}, e.g. a hotspot or an
+ * annotation. Its position is in the image coordinates of its {@link MarkerOverlay}, so it doesn't
+ * depend on the resolution the image is shown at. The position doesn't change; remove the marker
+ * and add a new one to move it.
+ *
+ * @see MarkerOverlay
+ */
+public class Marker {
+
+    private final float mX;
+    private final float mY;
+    @Nullable
+    private Object mTag;
+
+    /**
+     * @param x the horizontal position, in image coordinates
+     * @param y the vertical position, in image coordinates
+     */
+    public Marker(float x, float y) {
+        mX = x;
+        mY = y;
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    @Nullable
+    public Object getTag() {
+        return mTag;
+    }
+
+    /**
+     * Attaches arbitrary data to the marker, e.g. what to show once it is tapped.
+     */
+    public void setTag(@Nullable Object tag) {
+        mTag = tag;
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.metagalactic.views;
+
+import android.graphics.RectF;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A uniform grid over the image that buckets {@link Marker}s by position, so that finding the
+ * markers in a rect only looks at the cells the rect covers instead of at every marker. Markers
+ * outside the image are kept in the closest edge cell.
+ */
+@ParametersAreNonnullByDefault
+final class MarkerGrid {
+
+    /**
+     * Number of cells along each side of the image
+     */
+    private static final int CELLS_PER_SIDE = 64;
+
+    // Cells are only allocated once a marker falls into them
+    private final List<List<Marker>> mCells =
+            new ArrayList<>(Collections.<List<Marker>>nCopies(CELLS_PER_SIDE * CELLS_PER_SIDE, null));
+    private final float mCellWidth;
+    private final float mCellHeight;
+
+    MarkerGrid(int width, int height) {
+        mCellWidth = Math.max(1f, width / (float) CELLS_PER_SIDE);
+        mCellHeight = Math.max(1f, height / (float) CELLS_PER_SIDE);
+    }
+
+    void add(Marker marker) {
+        int index = getCellIndex(marker.getX(), marker.getY());
+        List<Marker> cell = mCells.get(index);
+        if (cell == null) {
+            cell = new ArrayList<>();
+            mCells.set(index, cell);
+        }
+        cell.add(marker);
+    }
+
+    boolean remove(Marker marker) {
+        List<Marker> cell = mCells.get(getCellIndex(marker.getX(), marker.getY()));
+        return cell != null && cell.remove(marker);
+    }
+
+    void clear() {
+        Collections.fill(mCells, null);
+    }
+
+    /**
+     * Adds the markers inside the rect to {@code out}.
+     */
+    void query(RectF rect, List<Marker> out) {
+        int firstColumn = getColumn(rect.left);
+        int lastColumn = getColumn(rect.right);
+        int firstRow = getRow(rect.top);
+        int lastRow = getRow(rect.bottom);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                List<Marker> cell = mCells.get(row * CELLS_PER_SIDE + column);
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0, size = cell.size(); i < size; i++) {
+                    Marker marker = cell.get(i);
+                    if (marker.getX() >= rect.left && marker.getX() <= rect.right &&
+                            marker.getY() >= rect.top && marker.getY() <= rect.bottom) {
+                        out.add(marker);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the marker closest to the point within the radius, or {@code null} if there is none
+     */
+    @Nullable
+    Marker findNearest(float x, float y, float radius) {
+        Marker nearest = null;
+        float nearestDistance = radius * radius;
+        for (int row = getRow(y - radius), lastRow = getRow(y + radius); row <= lastRow; row++) {
+            for (int column = getColumn(x - radius), lastColumn = getColumn(x + radius);
+                 column <= lastColumn; column++) {
+                List<Marker> cell = mCells.get(row * CELLS_PER_SIDE + column);
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0, size = cell.size(); i < size; i++) {
+                    Marker marker = cell.get(i);
+                    float dx = marker.getX() - x;
+                    float dy = marker.getY() - y;
+                    float distance = dx * dx + dy * dy;
+                    if (distance <= nearestDistance) {
+                        nearest = marker;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private int getCellIndex(float x, float y) {
+        return getRow(y) * CELLS_PER_SIDE + getColumn(x);
+    }
+
+    private int getColumn(float x) {
+        return clampCell((int) Math.floor(x / mCellWidth));
+    }
+
+    private int getRow(float y) {
+        return clampCell((int) Math.floor(y / mCellHeight));
+    }
+
+    private static int clampCell(int cell) {
+        return Math.max(0, Math.min(cell, CELLS_PER_SIDE - 1));
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Draws {@link Marker}s on top of the image of a {@link ScalableImageView} and reports taps on
+ * them. Markers are kept in a spatial index in image coordinates, so drawing a frame only touches
+ * the markers inside the visible part of the image, and finding the tapped marker only looks at
+ * the markers around the tap. This holds up with thousands of markers.
+ * <p>
+ * Marker positions refer to an image size fixed when creating the overlay, typically the size of
+ * the full resolution image. They are scaled to whatever drawable is shown, so markers stay in
+ * place when a lower resolution drawable is swapped for a higher one.
+ * <p>
+ * Markers keep their size on screen regardless of the scale. Must only be used on the main thread.
+ *
+ * @see ScalableImageView#setMarkerOverlay(MarkerOverlay)
+ */
+@ParametersAreNonnullByDefault
+public class MarkerOverlay {
+
+    private final Renderer mRenderer;
+    private final float mRadius;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final List<Marker> mMarkers = new ArrayList<>();
+    private final MarkerGrid mGrid;
+
+    // Scratch objects, reused for every frame
+    private final List<Marker> mVisibleMarkers = new ArrayList<>();
+    private final RectF mQueryRect = new RectF();
+    private final float[] mPoint = new float[2];
+
+    @Nullable
+    private OnMarkerClickListener mOnMarkerClickListener;
+    @Nullable
+    private ScalableImageView mHost;
+
+    /**
+     * @param renderer    draws a single marker
+     * @param radius      the radius of a marker on screen in pixels. Markers within this distance
+     *                    of the visible area are drawn, and taps within it hit the marker.
+     * @param imageWidth  the width of the image the marker positions refer to
+     * @param imageHeight the height of the image the marker positions refer to
+     */
+    public MarkerOverlay(Renderer renderer, float radius, int imageWidth, int imageHeight) {
+        mRenderer = renderer;
+        mRadius = radius;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mGrid = new MarkerGrid(imageWidth, imageHeight);
+    }
+
+    public void addMarker(Marker marker) {
+        mMarkers.add(marker);
+        mGrid.add(marker);
+        invalidateHost();
+    }
+
+    public void removeMarker(Marker marker) {
+        if (mMarkers.remove(marker)) {
+            mGrid.remove(marker);
+            invalidateHost();
+        }
+    }
+
+    public void clearMarkers() {
+        mMarkers.clear();
+        mGrid.clear();
+        invalidateHost();
+    }
+
+    public int getImageWidth() {
+        return mImageWidth;
+    }
+
+    public int getImageHeight() {
+        return mImageHeight;
+    }
+
+    /**
+     * @return all markers, in the order they were added
+     */
+    public List<Marker> getMarkers() {
+        return Collections.unmodifiableList(mMarkers);
+    }
+
+    public void setOnMarkerClickListener(@Nullable OnMarkerClickListener listener) {
+        mOnMarkerClickListener = listener;
+    }
+
+    void setHost(@Nullable ScalableImageView host) {
+        mHost = host;
+    }
+
+    /**
+     * Draws the markers inside the visible part of the image.
+     *
+     * @param canvas         a canvas in the coordinates the image matrix maps to
+     * @param matrix         the image matrix
+     * @param visibleRect    the visible part of the image, in intrinsic drawable coordinates
+     * @param scale          the number of screen pixels per drawable pixel
+     * @param drawableWidth  the width of the drawable
+     * @param drawableHeight the height of the drawable
+     */
+    void draw(Canvas canvas, Matrix matrix, RectF visibleRect, float scale, int drawableWidth, int drawableHeight) {
+        if (mMarkers.isEmpty() || scale <= 0f || drawableWidth <= 0 || drawableHeight <= 0) {
+            return;
+        }
+
+        // From image to drawable coordinates
+        float scaleX = drawableWidth / (float) mImageWidth;
+        float scaleY = drawableHeight / (float) mImageHeight;
+
+        // Markers just outside still reach into view
+        float margin = mRadius / scale;
+        mQueryRect.set((visibleRect.left - margin) / scaleX, (visibleRect.top - margin) / scaleY,
+                (visibleRect.right + margin) / scaleX, (visibleRect.bottom + margin) / scaleY);
+        mGrid.query(mQueryRect, mVisibleMarkers);
+
+        float[] point = mPoint;
+        for (int i = 0, size = mVisibleMarkers.size(); i < size; i++) {
+            Marker marker = mVisibleMarkers.get(i);
+            point[0] = marker.getX() * scaleX;
+            point[1] = marker.getY() * scaleY;
+            matrix.mapPoints(point);
+            mRenderer.drawMarker(canvas, marker, point[0], point[1]);
+        }
+        mVisibleMarkers.clear();
+    }
+
+    /**
+     * Reports a tap at the given drawable position to the listener, if it hits a marker.
+     *
+     * @return whether the tap was consumed
+     */
+    boolean dispatchTap(ScalableImageView view, float x, float y, float scale, int drawableWidth,
+                        int drawableHeight) {
+        if (mOnMarkerClickListener == null || mMarkers.isEmpty() || scale <= 0f
+                || drawableWidth <= 0 || drawableHeight <= 0) {
+            return false;
+        }
+        float scaleX = drawableWidth / (float) mImageWidth;
+        float scaleY = drawableHeight / (float) mImageHeight;
+        // The hit radius in image pixels, along the side the image is shrunk the most
+        float radius = mRadius / (scale * Math.min(scaleX, scaleY));
+        Marker marker = mGrid.findNearest(x / scaleX, y / scaleY, radius);
+        return marker != null && mOnMarkerClickListener.onMarkerClick(view, marker);
+    }
+
+    private void invalidateHost() {
+        if (mHost != null) {
+            mHost.invalidate();
+        }
+    }
+
+    /**
+     * Draws a single marker.
+     */
+    public interface Renderer {
+
+        /**
+         * Called for every marker in view, every frame. Should not allocate.
+         *
+         * @param canvas the canvas to draw on
+         * @param marker the marker to draw
+         * @param x      the horizontal position of the marker on the canvas
+         * @param y      the vertical position of the marker on the canvas
+         */
+        void drawMarker(Canvas canvas, Marker marker, float x, float y);
+    }
+
+    /**
+     * Notified when a marker is tapped.
+     */
+    public interface OnMarkerClickListener {
+
+        /**
+         * @param view   the view showing the marker
+         * @param marker the marker closest to the tap
+         * @return whether the tap was consumed
+         */
+        boolean onMarkerClick(ScalableImageView view, Marker marker);
+    }
+}
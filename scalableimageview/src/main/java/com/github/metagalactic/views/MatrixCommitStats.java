@@ -0,0 +1,63 @@
+package com.github.metagalactic.views;
+
+/**
+ * A snapshot of how often {@link ScalableImageView} updated and committed its image matrix in
+ * response to touch input.
+ */
+public final class MatrixCommitStats {
+
+    private final int mUpdateCount;
+    private final int mCommitCount;
+    private final int mFrameCount;
+
+    MatrixCommitStats(int updateCount, int commitCount, int frameCount) {
+        mUpdateCount = updateCount;
+        mCommitCount = commitCount;
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * @return the number of pan and scale updates made to the matrix
+     */
+    public int getUpdateCount() {
+        return mUpdateCount;
+    }
+
+    /**
+     * @return the number of times the matrix was handed to the view, each causing an invalidation
+     */
+    public int getCommitCount() {
+        return mCommitCount;
+    }
+
+    /**
+     * @return the number of frames in which at least one input driven update was made
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the average number of matrix updates per frame, i.e. the commits per frame without
+     * coalescing
+     */
+    public float getUpdatesPerFrame() {
+        return mFrameCount > 0 ? (float) mUpdateCount / mFrameCount : 0f;
+    }
+
+    /**
+     * @return the average number of matrix commits per frame
+     */
+    public float getCommitsPerFrame() {
+        return mFrameCount > 0 ? (float) mCommitCount / mFrameCount : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return "MatrixCommitStats{" +
+                "updates=" + mUpdateCount +
+                ", commits=" + mCommitCount +
+                ", frames=" + mFrameCount +
+                '}';
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.metagalactic.views;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Collects the timings behind {@link PerformanceStats} for a single {@link ScalableImageView}.
+ * Only exists while stats are enabled, so the view pays nothing but a null check otherwise. Must
+ * only be used on the main thread.
+ */
+@ParametersAreNonnullByDefault
+final class PerformanceMonitor implements Choreographer.FrameCallback {
+
+    private static final float DEFAULT_REFRESH_RATE = 60f;
+
+    private final long mFrameIntervalNanos;
+
+    private int mTouchEventCount;
+    private long mTouchEventTotalNanos;
+    private long mTouchEventMaxNanos;
+
+    private int mScaleEventCount;
+    private long mScaleEventTotalNanos;
+    private long mScaleEventMaxNanos;
+
+    private int mAnimationFrameCount;
+    private long mAnimationFrameTotalNanos;
+    private long mAnimationFrameMaxNanos;
+
+    private int mMotionFrameCount;
+    private int mDroppedFrameCount;
+    private long mLastFrameTimeNanos;
+    private boolean mIsInMotion;
+
+    PerformanceMonitor(Context context) {
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = windowManager != null ?
+                windowManager.getDefaultDisplay().getRefreshRate() : DEFAULT_REFRESH_RATE;
+        if (refreshRate < 1f) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        mFrameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / refreshRate);
+    }
+
+    void recordTouchEvent(long nanos) {
+        mTouchEventCount++;
+        mTouchEventTotalNanos += nanos;
+        mTouchEventMaxNanos = Math.max(mTouchEventMaxNanos, nanos);
+    }
+
+    void recordScaleEvent(long nanos) {
+        mScaleEventCount++;
+        mScaleEventTotalNanos += nanos;
+        mScaleEventMaxNanos = Math.max(mScaleEventMaxNanos, nanos);
+    }
+
+    void recordAnimationFrame(long nanos) {
+        mAnimationFrameCount++;
+        mAnimationFrameTotalNanos += nanos;
+        mAnimationFrameMaxNanos = Math.max(mAnimationFrameMaxNanos, nanos);
+    }
+
+    /**
+     * Starts or stops watching for dropped frames. The view is in motion while a pinch, fling or
+     * transform animation is running.
+     */
+    void setInMotion(boolean isInMotion) {
+        if (mIsInMotion == isInMotion) {
+            return;
+        }
+        mIsInMotion = isInMotion;
+        mLastFrameTimeNanos = 0;
+        if (isInMotion) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mIsInMotion) {
+            return;
+        }
+
+        if (mLastFrameTimeNanos > 0) {
+            long interval = frameTimeNanos - mLastFrameTimeNanos;
+            long skipped = Math.round((double) interval / mFrameIntervalNanos) - 1;
+            if (skipped > 0) {
+                mDroppedFrameCount += skipped;
+            }
+            mMotionFrameCount++;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void reset() {
+        mTouchEventCount = 0;
+        mTouchEventTotalNanos = 0;
+        mTouchEventMaxNanos = 0;
+        mScaleEventCount = 0;
+        mScaleEventTotalNanos = 0;
+        mScaleEventMaxNanos = 0;
+        mAnimationFrameCount = 0;
+        mAnimationFrameTotalNanos = 0;
+        mAnimationFrameMaxNanos = 0;
+        mMotionFrameCount = 0;
+        mDroppedFrameCount = 0;
+    }
+
+    PerformanceStats snapshot(MatrixCommitStats matrixCommitStats,
+                              @Nullable TileCacheStats tileCacheStats) {
+        return new PerformanceStats(
+                mTouchEventCount, average(mTouchEventTotalNanos, mTouchEventCount), mTouchEventMaxNanos,
+                mScaleEventCount, average(mScaleEventTotalNanos, mScaleEventCount), mScaleEventMaxNanos,
+                mAnimationFrameCount, average(mAnimationFrameTotalNanos, mAnimationFrameCount), mAnimationFrameMaxNanos,
+                mMotionFrameCount, mDroppedFrameCount,
+                matrixCommitStats, tileCacheStats);
+    }
+
+    private static long average(long total, int count) {
+        return count > 0 ? total / count : 0;
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.metagalactic.views;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A snapshot of the gesture performance of a {@link ScalableImageView}, collected while
+ * {@link ScalableImageView#setPerformanceStatsEnabled(boolean)} is on. All durations are in
+ * nanoseconds.
+ */
+public final class PerformanceStats {
+
+    private final int mTouchEventCount;
+    private final long mTouchEventAverageNanos;
+    private final long mTouchEventMaxNanos;
+    private final int mScaleEventCount;
+    private final long mScaleEventAverageNanos;
+    private final long mScaleEventMaxNanos;
+    private final int mAnimationFrameCount;
+    private final long mAnimationFrameAverageNanos;
+    private final long mAnimationFrameMaxNanos;
+    private final int mMotionFrameCount;
+    private final int mDroppedFrameCount;
+    private final MatrixCommitStats mMatrixCommitStats;
+    @Nullable
+    private final TileCacheStats mTileCacheStats;
+
+    PerformanceStats(int touchEventCount, long touchEventAverageNanos, long touchEventMaxNanos,
+                     int scaleEventCount, long scaleEventAverageNanos, long scaleEventMaxNanos,
+                     int animationFrameCount, long animationFrameAverageNanos, long animationFrameMaxNanos,
+                     int motionFrameCount, int droppedFrameCount,
+                     MatrixCommitStats matrixCommitStats, @Nullable TileCacheStats tileCacheStats) {
+        mTouchEventCount = touchEventCount;
+        mTouchEventAverageNanos = touchEventAverageNanos;
+        mTouchEventMaxNanos = touchEventMaxNanos;
+        mScaleEventCount = scaleEventCount;
+        mScaleEventAverageNanos = scaleEventAverageNanos;
+        mScaleEventMaxNanos = scaleEventMaxNanos;
+        mAnimationFrameCount = animationFrameCount;
+        mAnimationFrameAverageNanos = animationFrameAverageNanos;
+        mAnimationFrameMaxNanos = animationFrameMaxNanos;
+        mMotionFrameCount = motionFrameCount;
+        mDroppedFrameCount = droppedFrameCount;
+        mMatrixCommitStats = matrixCommitStats;
+        mTileCacheStats = tileCacheStats;
+    }
+
+    /**
+     * @return the number of touch events handled by {@code onTouchEvent}
+     */
+    public int getTouchEventCount() {
+        return mTouchEventCount;
+    }
+
+    public long getTouchEventAverageNanos() {
+        return mTouchEventAverageNanos;
+    }
+
+    public long getTouchEventMaxNanos() {
+        return mTouchEventMaxNanos;
+    }
+
+    /**
+     * @return the number of scale callbacks handled while pinching
+     */
+    public int getScaleEventCount() {
+        return mScaleEventCount;
+    }
+
+    public long getScaleEventAverageNanos() {
+        return mScaleEventAverageNanos;
+    }
+
+    public long getScaleEventMaxNanos() {
+        return mScaleEventMaxNanos;
+    }
+
+    /**
+     * @return the number of frames rendered by the reset, zoom and fling animations
+     */
+    public int getAnimationFrameCount() {
+        return mAnimationFrameCount;
+    }
+
+    /**
+     * @return the average time spent computing an animation frame
+     */
+    public long getAnimationFrameAverageNanos() {
+        return mAnimationFrameAverageNanos;
+    }
+
+    public long getAnimationFrameMaxNanos() {
+        return mAnimationFrameMaxNanos;
+    }
+
+    /**
+     * @return the number of frames observed while pinching, flinging or animating
+     */
+    public int getMotionFrameCount() {
+        return mMotionFrameCount;
+    }
+
+    /**
+     * @return the number of vsyncs missed while pinching, flinging or animating
+     */
+    public int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    public MatrixCommitStats getMatrixCommitStats() {
+        return mMatrixCommitStats;
+    }
+
+    /**
+     * @return the tile cache counters, or {@code null} if no tiled image has been shown
+     */
+    @Nullable
+    public TileCacheStats getTileCacheStats() {
+        return mTileCacheStats;
+    }
+
+    @Override
+    public String toString() {
+        return "PerformanceStats{" +
+                "touchEvents=" + mTouchEventCount +
+                ", touchEventAvgNs=" + mTouchEventAverageNanos +
+                ", touchEventMaxNs=" + mTouchEventMaxNanos +
+                ", scaleEvents=" + mScaleEventCount +
+                ", scaleEventAvgNs=" + mScaleEventAverageNanos +
+                ", scaleEventMaxNs=" + mScaleEventMaxNanos +
+                ", animationFrames=" + mAnimationFrameCount +
+                ", animationFrameAvgNs=" + mAnimationFrameAverageNanos +
+                ", animationFrameMaxNs=" + mAnimationFrameMaxNanos +
+                ", motionFrames=" + mMotionFrameCount +
+                ", droppedFrames=" + mDroppedFrameCount +
+                ", " + mMatrixCommitStats +
+                ", " + mTileCacheStats +
+                '}';
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Reads tiles from a {@link TilePyramidFormat tile pyramid} file. The file is memory-mapped, so a
+ * tile is streamed from the page cache into the decoder, and the file is never read into the heap
+ * as a whole.
+ */
+@ParametersAreNonnullByDefault
+final class PyramidTileDecoder implements TileDecoder {
+
+    private static final String TAG = PyramidTileDecoder.class.getSimpleName();
+
+    private final MappedByteBuffer mBuffer;
+    private final TilePyramidFormat.Header mHeader;
+
+    private volatile boolean mIsRecycled;
+
+    private PyramidTileDecoder(MappedByteBuffer buffer, TilePyramidFormat.Header header) {
+        mBuffer = buffer;
+        mHeader = header;
+    }
+
+    /**
+     * Maps a pyramid file and reads its header.
+     *
+     * @param tileSize the tile size the pyramid must have been written with
+     * @throws IOException if the file can't be read or isn't a complete pyramid
+     */
+    static PyramidTileDecoder open(File file, int tileSize) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            long length = input.length();
+            if (length > TilePyramidFormat.MAX_FILE_SIZE) {
+                throw new IOException("Tile pyramid too large to map: " + file);
+            }
+            // The mapping stays valid after the file is closed
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            input.close();
+        }
+
+        TilePyramidFormat.Header header;
+        try {
+            header = TilePyramidFormat.readHeader(buffer);
+        } catch (IOException e) {
+            throw new IOException("Invalid tile pyramid " + file, e);
+        }
+        if (header.tileSize != tileSize) {
+            throw new IOException("Unexpected tile size " + header.tileSize + " in " + file);
+        }
+        return new PyramidTileDecoder(buffer, header);
+    }
+
+    @Override
+    public int getWidth() {
+        return mHeader.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeader.height;
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeBaseLayer(int sampleSize) {
+        if (sampleSize != mHeader.baseSampleSize) {
+            return null;
+        }
+        return readEntry(0, null);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeTile(Tile tile, @Nullable BitmapPool pool) {
+        int entry = mHeader.getEntry(tile.level, tile.column, tile.row);
+        return entry < 0 ? null : readEntry(entry, pool);
+    }
+
+    @Override
+    public void recycle() {
+        // The mapping is released once the buffer is garbage collected
+        mIsRecycled = true;
+    }
+
+    @Nullable
+    private Bitmap readEntry(int entry, @Nullable BitmapPool pool) {
+        if (mIsRecycled) {
+            return null;
+        }
+
+        int position = mHeader.getEntryPosition(entry);
+        int offset;
+        try {
+            offset = TilePyramidFormat.getEntryOffset(mBuffer, position);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read pyramid entry " + entry, e);
+            return null;
+        }
+        int length = TilePyramidFormat.getEntryLength(mBuffer, position);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (pool != null) {
+            options.inBitmap = pool.get(TilePyramidFormat.getEntryWidth(mBuffer, position),
+                    TilePyramidFormat.getEntryHeight(mBuffer, position), options.inPreferredConfig);
+        }
+
+        // The shared buffer's position can't be used concurrently, so read through a view of it
+        ByteBuffer data = mBuffer.duplicate();
+        data.limit(offset + length);
+        data.position(offset);
+        try {
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                Log.e(TAG, "Failed to decode pyramid entry " + entry, e);
+                return null;
+            }
+            // The pooled bitmap couldn't be reused, decode into fresh memory instead
+            options.inBitmap.recycle();
+            return readEntry(entry, null);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Failed to decode pyramid entry " + entry, e);
+            return null;
+        }
+    }
+}
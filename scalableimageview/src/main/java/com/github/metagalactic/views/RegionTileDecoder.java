@@ -0,0 +1,132 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Decodes tiles from the compressed image with a {@link BitmapRegionDecoder}. When created for an
+ * {@link ImageSource}, the decoder is only opened by the first decode, on a worker thread.
+ */
+@ParametersAreNonnullByDefault
+final class RegionTileDecoder implements TileDecoder {
+
+    private static final String TAG = RegionTileDecoder.class.getSimpleName();
+
+    private final int mWidth;
+    private final int mHeight;
+    @Nullable
+    private final ImageSource mSource;
+    @Nullable
+    private final Context mContext;
+
+    // Guarded by this
+    @Nullable
+    private BitmapRegionDecoder mDecoder;
+    private boolean mIsRecycled;
+
+    RegionTileDecoder(BitmapRegionDecoder decoder) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mSource = null;
+        mContext = null;
+    }
+
+    /**
+     * @param source  the image
+     * @param context the application context, to open the source with
+     * @param header  the header of the image, for its size
+     */
+    RegionTileDecoder(ImageSource source, Context context, ImageHeader header) {
+        mSource = source;
+        mContext = context;
+        mWidth = header.width;
+        mHeight = header.height;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeBaseLayer(int sampleSize) {
+        return decodeRegion(new Rect(0, 0, getWidth(), getHeight()), sampleSize, null);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeTile(Tile tile, @Nullable BitmapPool pool) {
+        return decodeRegion(tile.imageRect, tile.sampleSize, pool);
+    }
+
+    @Override
+    public synchronized void recycle() {
+        mIsRecycled = true;
+        if (mDecoder != null) {
+            mDecoder.recycle();
+        }
+    }
+
+    @Nullable
+    private synchronized BitmapRegionDecoder getDecoder() {
+        if (mDecoder == null && mSource != null && mContext != null && !mIsRecycled) {
+            try {
+                mDecoder = mSource.newRegionDecoder(mContext);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open " + mSource, e);
+                // Don't try again for every tile
+                mIsRecycled = true;
+            }
+        }
+        return mIsRecycled ? null : mDecoder;
+    }
+
+    @Nullable
+    private Bitmap decodeRegion(Rect imageRect, int sampleSize, @Nullable BitmapPool pool) {
+        BitmapRegionDecoder decoder = getDecoder();
+        if (decoder == null) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        if (pool != null) {
+            int width = (imageRect.width() + sampleSize - 1) / sampleSize;
+            int height = (imageRect.height() + sampleSize - 1) / sampleSize;
+            options.inBitmap = pool.get(width, height, options.inPreferredConfig);
+        }
+
+        try {
+            return decoder.decodeRegion(imageRect, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                Log.e(TAG, "Failed to decode region " + imageRect, e);
+                return null;
+            }
+            // The pooled bitmap couldn't be reused, decode into fresh memory instead
+            options.inBitmap.recycle();
+            return decodeRegion(imageRect, sampleSize, null);
+        } catch (IllegalStateException | OutOfMemoryError e) {
+            Log.e(TAG, "Failed to decode region " + imageRect, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.metagalactic.views;
+
+/**
+ * Supplies higher resolution versions of the image shown in a {@link ScalableImageView}. This lets
+ * the view show a cheap, low resolution source first and only pay for a bigger one once the user
+ * actually zooms in far enough to see the difference.
+ *
+ * @see ScalableImageView#setResolutionProvider(ResolutionProvider)
+ */
+public interface ResolutionProvider {
+
+    /**
+     * Called on the UI thread once the view is zoomed past the resolution of its current drawable,
+     * i.e. a drawable pixel covers more than one screen pixel. Implementations should load a
+     * version of the same image, ideally at the given size, and hand it to
+     * {@link ScalableImageView#setImageDrawable(android.graphics.drawable.Drawable)}. The current
+     * scale and pan are kept across the swap.
+     * <p>
+     * This is called at most once for every size, so it's fine to start a download from here.
+     *
+     * @param view   the view that needs a bigger source
+     * @param width  the width at which the image would stay sharp up to the maximum scale
+     * @param height the height at which the image would stay sharp up to the maximum scale
+     */
+    void onResolutionRequired(ScalableImageView view, int width, int height);
+
+    /**
+     * Called on the UI thread when memory runs low and the view is off-screen, or on-screen but not
+     * zoomed. Implementations should set the low resolution source again and release the bigger
+     * one. {@link #onResolutionRequired(ScalableImageView, int, int)} is called again once the
+     * view is zoomed in.
+     *
+     * @param view the view that no longer needs the bigger source
+     */
+    void onResolutionReleased(ScalableImageView view);
+}
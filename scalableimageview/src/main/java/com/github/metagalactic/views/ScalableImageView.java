@@ -1,28 +1,49 @@
 package com.github.metagalactic.views;
 
-import android.animation.Animator;
-import android.animation.AnimatorListenerAdapter;
-import android.animation.ValueAnimator;
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.graphics.drawable.DrawableCompat;
+import android.support.v4.view.NestedScrollingChild;
+import android.support.v4.view.NestedScrollingChildHelper;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.GestureDetector;
+import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewConfiguration;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.AnimationUtils;
+import android.view.animation.Interpolator;
 import android.widget.ImageView;
+import android.widget.OverScroller;
+
+import com.github.metagalactic.viewport.ViewportTransform;
+
+import java.io.File;
+import java.io.IOException;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
 @ParametersAreNonnullByDefault
-public class ScalableImageView extends AppCompatImageView {
+public class ScalableImageView extends AppCompatImageView implements NestedScrollingChild {
 
     public static final String TAG = ScalableImageView.class.getSimpleName();
 
@@ -41,19 +62,72 @@ public class ScalableImageView extends AppCompatImageView {
      */
     private static final float NO_TRANSLATION = 0f;
 
+    /**
+     * A bitmap is drawn whole if at least this share of it is visible, as clipping wouldn't save
+     * enough to make up for bypassing the drawable
+     */
+    private static final float FULL_DRAW_VISIBLE_FRACTION = 0.5f;
+
     /**
      * Used to clear the last pointer ID
      */
     private static final int NO_POINTER = -1;
 
     /**
-     * Duration for the reset animation in milliseconds
+     * Fraction of the maximum heap used by the tile cache in tiled mode
+     */
+    private static final int TILE_CACHE_MEMORY_DIVISOR = 8;
+
+    /**
+     * Decode priority of reading the header of an image source, which goes ahead of all tiles as
+     * nothing of the image can be shown without it
+     */
+    private static final float SOURCE_PRIORITY = -2f;
+
+    /**
+     * How far ahead, in seconds, the viewport is extrapolated from the current pan and pinch
+     * velocity to prefetch the tiles it is about to reach
+     */
+    private static final float PREFETCH_LOOKAHEAD_SECONDS = 0.3f;
+
+    /**
+     * Weight of the newest sample in the smoothed pinch velocity
+     */
+    private static final float SCALE_VELOCITY_SMOOTHING = 0.5f;
+
+    /**
+     * Duration for the reset and zoom animations in milliseconds
      */
     private static final int RESET_ANIMATION_DURATION = 300;
 
+    /**
+     * The scale a double tap zooms to, if allowed by the maximum scale
+     */
+    private static final float DOUBLE_TAP_SCALE = 2f;
+
+    /**
+     * Memory priorities, from the view whose image is the first to be trimmed to the last
+     */
+    static final int MEMORY_PRIORITY_OFF_SCREEN = 0;
+    static final int MEMORY_PRIORITY_ON_SCREEN = 1;
+    static final int MEMORY_PRIORITY_ZOOMED = 2;
+
     private boolean mIsAnimating = false;
+    private boolean mIsBaseMatrixDirty = true;
+    private boolean mIsCommittedMatrixValid = false;
+    private boolean mIsCoalescingMatrixUpdates = false;
+    private boolean mIsDoubleTapZoomEnabled = true;
+    private boolean mIsInMotion = false;
+    // The filter setting of the drawable from before low-cost mode, if it was overridden
+    private boolean mIsLowCostFilterBitmapOverridden = false;
+    private boolean mLowCostRestoreFilterBitmap = true;
+    private boolean mIsLowCostMode = false;
+    private boolean mIsMatrixFrameCallbackPending = false;
     private boolean mIsMultiPointerEventSeries = false;
+    private boolean mIsNestedDragging = false;
     private boolean mIsScalable = true;
+    private boolean mIsScaling = false;
+    private boolean mIsViewportStale = false;
 
     private float mAttemptedPanMax = NO_TRANSLATION;
 
@@ -64,14 +138,79 @@ public class ScalableImageView extends AppCompatImageView {
     private float mCurrentScaleMin = NO_SCALE;
     private float mMaxScale = DEFAULT_SCALE_MAX;
 
+    // Pan velocity in pixels per second and pinch velocity as the log of the scale factor per second
+    private float mPanVelocityX;
+    private float mPanVelocityY;
+    private float mScaleVelocity;
+
+    // How far nested scrolling parents have moved the view during the current touch stream
+    private float mNestedOffsetX;
+    private float mNestedOffsetY;
+
+    private int mBaseDrawableHeight;
+    private int mBaseDrawableWidth;
     private int mLastPointerId = NO_POINTER;
+    private int mMatrixCommitCount;
+    private int mMatrixUpdateCount;
+    private int mMatrixUpdateFrameCount;
+    private int mMaximumFlingVelocity;
+    private int mMinimumFlingVelocity;
+    private int mRequestedResolutionWidth;
     private int mTouchSlop;
 
     private Matrix mMatrix = new Matrix();
+    private final Matrix mBaseMatrix = new Matrix();
+    private final Matrix mTargetMatrix = new Matrix();
     private PointF mCurrentTranslation = new PointF();
     private PointF mInitialCoordinates = new PointF();
     private PointF mPreviousCoordinates = new PointF();
     private ScaleGestureDetector mScaleGestureDetector;
+    @Nullable
+    private VelocityTracker mVelocityTracker;
+    private FlingRunnable mFlingRunnable;
+    private GestureDetector mGestureDetector;
+    private TransformAnimation mTransformAnimation;
+    @Nullable
+    private PerformanceMonitor mPerformanceMonitor;
+    @Nullable
+    private ImageMemoryCoordinator mMemoryCoordinator;
+    @Nullable
+    private ResolutionProvider mResolutionProvider;
+    @Nullable
+    private TileCache mTileCache;
+    @Nullable
+    private DrawableRasterizer mRasterizer;
+    @Nullable
+    private MarkerOverlay mMarkerOverlay;
+    @Nullable
+    private ViewportGroup mViewportGroup;
+    @Nullable
+    private TileDecodeScheduler.Task mSourceLoadTask;
+    private final NestedScrollingChildHelper mNestedScrollingHelper = new NestedScrollingChildHelper(this);
+
+    // Scratch objects for the touch -> clamp -> matrix pipeline. These are reused for every event
+    // so that panning and pinching never allocate on the heap.
+    private final float[] mMatrixValues = new float[9];
+    private final Matrix mInverseMatrix = new Matrix();
+    private final PointF mCenteringTranslation = new PointF();
+    private final PointF mTranslationDelta = new PointF();
+    private final PointF mNestedScrollRemainder = new PointF();
+    private final PointF mScrollProbe = new PointF();
+    private final int[] mNestedScrollOffset = new int[2];
+    private final Rect mTempDrawableRect = new Rect();
+    private final RectF mTempDrawableBounds = new RectF();
+    private final RectF mTempViewBounds = new RectF();
+    private final RectF mVisibleDrawableRect = new RectF();
+    private final RectF mPredictedDrawableRect = new RectF();
+    private final Rect mTempVisibleRect = new Rect();
+
+    // Scratch objects for drawing, kept apart from the touch pipeline ones
+    private final Matrix mCommittedMatrix = new Matrix();
+    private final Matrix mDrawInverseMatrix = new Matrix();
+    private final Rect mDrawSourceRect = new Rect();
+    private final RectF mDrawDestinationRect = new RectF();
+    private final RectF mDrawVisibleRect = new RectF();
+    private final float[] mTapPoint = new float[2];
 
     public ScalableImageView(Context context) {
         super(context);
@@ -88,30 +227,517 @@ public class ScalableImageView extends AppCompatImageView {
         init();
     }
 
+    @Override
+    public void invalidateDrawable(@NonNull Drawable drawable) {
+        if (drawable == getDrawable() &&
+                (drawable.getIntrinsicWidth() != mBaseDrawableWidth ||
+                        drawable.getIntrinsicHeight() != mBaseDrawableHeight)) {
+            // The drawable changed its own size (e.g. a transition or an animated drawable), so the
+            // bounds ImageView gives it no longer match the cached base matrix.
+            invalidateBaseMatrix();
+        }
+        if (drawable instanceof TiledImageDrawable && mMemoryCoordinator != null) {
+            // Most likely a tile was just decoded
+            mMemoryCoordinator.onMemoryChanged();
+        }
+        if (mRasterizer != null && drawable == getDrawable()) {
+            // The content changed, the rasterized bitmaps are stale
+            mRasterizer.invalidate();
+        }
+        super.invalidateDrawable(drawable);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        invalidateBaseMatrix();
+        dispatchViewportChanged();
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bm) {
+        super.setImageBitmap(bm);
+        invalidateBaseMatrix();
+    }
+
+    @Override
+    public void setImageDrawable(@Nullable Drawable drawable) {
+        // Any image set meanwhile replaces a source that is still being opened
+        cancelSourceLoad();
+        Drawable previous = getDrawable();
+        super.setImageDrawable(drawable);
+        mIsCommittedMatrixValid = false;
+        if (mIsLowCostMode && previous != drawable) {
+            setLowCostMode(previous, false);
+            setLowCostMode(drawable, true);
+        }
+        if (previous != drawable && previous instanceof TiledImageDrawable) {
+            // The tiled drawable is owned by this view, see setImageRegionDecoder()
+            ((TiledImageDrawable) previous).recycle();
+        }
+        invalidateBaseMatrix();
+        dispatchViewportChanged();
+        if (mMemoryCoordinator != null) {
+            mMemoryCoordinator.onMemoryChanged();
+        }
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        // This is also reached from the super constructor, before any fields are initialized
+        if (mCommittedMatrix != null) {
+            mCommittedMatrix.set(matrix);
+            mIsCommittedMatrixValid = true;
+        }
+        dispatchViewportChanged();
+        checkResolution();
+        if (mViewportGroup != null) {
+            mViewportGroup.onTransformChanged(this);
+        }
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        // The image matrix only applies to the MATRIX scale type, so it has to be committed again
+        mIsCommittedMatrixValid = false;
+    }
+
+    /**
+     * Sets the provider that is asked for a higher resolution version of the image once the user
+     * zooms past the resolution of the current drawable. Set it again for every new image.
+     *
+     * @param provider the provider, or {@code null} to always keep the current drawable
+     */
+    public void setResolutionProvider(@Nullable ResolutionProvider provider) {
+        mResolutionProvider = provider;
+        mRequestedResolutionWidth = 0;
+        if (provider != null && mMatrix != null) {
+            checkResolution();
+        }
+    }
+
+    /**
+     * Displays a very large image in tiled mode. Only the visible region is decoded, at the sample
+     * size needed for the current scale, while a low resolution version of the whole image is shown
+     * underneath. Pan and pinch behave exactly as they do for a regular drawable.
+     * <p>
+     * The view takes ownership of the decoder and recycles it once another image is set.
+     *
+     * @param decoder the decoder for the image, or {@code null} to clear the image
+     */
+    public void setImageRegionDecoder(@Nullable BitmapRegionDecoder decoder) {
+        setImageDrawable(decoder != null
+                ? new TiledImageDrawable(new RegionTileDecoder(decoder), getTileCache())
+                : null);
+    }
+
+    /**
+     * Displays a very large image file in tiled mode, like {@link #setImageRegionDecoder}. The
+     * first time a file is shown, all of its tiles are written to an on-disk cache in the
+     * background, unless the image is too large to be worth caching. Later, the tiles are read
+     * from that cache through a memory-mapped file, and each is a small, self-contained decode
+     * instead of a region decode of the whole file.
+     *
+     * @param file the image file, or {@code null} to clear the image
+     */
+    public void setImageFile(@Nullable File file) {
+        setImageSource(file != null ? ImageSource.file(file) : null);
+    }
+
+    /**
+     * Displays an encoded image in tiled mode. Opening the source and reading its header happens
+     * in the background first, after which the view is fitted to the image, in its EXIF
+     * orientation, before any pixel is decoded. Regions are then decoded in the background as they
+     * become visible, straight from the source. Files also get an on-disk tile cache, see
+     * {@link #setImageFile(File)}.
+     *
+     * @param source the image, or {@code null} to clear the image
+     */
+    public void setImageSource(@Nullable ImageSource source) {
+        setImageSource(source, null);
+    }
+
+    /**
+     * Displays an encoded image in tiled mode like {@link #setImageSource(ImageSource)}, and shows a
+     * placeholder that is already in memory right away until the image is decoded, e.g. the
+     * thumbnail that was tapped to open it. The placeholder also stays if the source can't be read.
+     * It is fitted like the full image, so it must have the same aspect ratio and orientation as
+     * the image is shown in. A pinch or pan started on the placeholder carries on seamlessly once
+     * the image is decoded underneath it.
+     * <p>
+     * When the full image is loaded elsewhere instead, showing the placeholder with
+     * {@link #setImageBitmap(Bitmap)} and then the image with {@link #setImageDrawable(Drawable)}
+     * keeps the scale and pan the same way.
+     *
+     * @param source      the image, or {@code null} to clear the image
+     * @param placeholder the bitmap to show meanwhile, or {@code null} for none. It is not recycled
+     *                    by the view.
+     */
+    public void setImageSource(@Nullable ImageSource source, @Nullable final Bitmap placeholder) {
+        if (source == null) {
+            setImageDrawable(null);
+            return;
+        }
+
+        // Shown right away and fitted like the image, so the swap doesn't move anything
+        if (placeholder != null) {
+            setImageBitmap(placeholder);
+        } else {
+            setImageDrawable(null);
+        }
+
+        final ImageSource loadingSource = source;
+        final Context context = getContext().getApplicationContext();
+        mSourceLoadTask = new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                final TileDecodeScheduler.Task task = this;
+                final LoadedSource loaded = loadSource(loadingSource, context);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSourceLoaded(task, placeholder, loaded);
+                    }
+                });
+            }
+        };
+        TileDecodeScheduler.getInstance().submit(mSourceLoadTask, SOURCE_PRIORITY);
+    }
+
+    private void onSourceLoaded(TileDecodeScheduler.Task task, @Nullable Bitmap placeholder,
+                                @Nullable LoadedSource loaded) {
+        if (task != mSourceLoadTask) {
+            // Another image was set meanwhile
+            if (loaded != null) {
+                loaded.decoder.recycle();
+            }
+            return;
+        }
+        mSourceLoadTask = null;
+        if (loaded == null) {
+            // Better than nothing, the placeholder stays
+            return;
+        }
+
+        TiledImageDrawable drawable = new TiledImageDrawable(loaded.decoder, getTileCache(),
+                loaded.header.orientation);
+        drawable.setPlaceholder(placeholder);
+        setImageDrawable(drawable);
+        if (loaded.pyramidKey != null) {
+            drawable.writePyramid(TilePyramidCache.getInstance(getContext()), loaded.pyramidKey);
+        }
+    }
+
+    private void cancelSourceLoad() {
+        // This is also reached from the super constructor, before any fields are initialized
+        if (mSourceLoadTask != null) {
+            TileDecodeScheduler.getInstance().cancel(mSourceLoadTask);
+            mSourceLoadTask = null;
+        }
+    }
+
+    /**
+     * Reads the header of a source and picks how to decode it, which may block on disk or network
+     * I/O. Runs on a decode thread.
+     *
+     * @return the opened source, or {@code null} if it can't be read
+     */
+    @Nullable
+    private static LoadedSource loadSource(ImageSource source, Context context) {
+        ImageHeader header;
+        try {
+            header = source.readHeader(context);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + source, e);
+            return null;
+        }
+
+        TilePyramidCache cache = TilePyramidCache.getInstance(context);
+        String key = source.getCacheKey();
+        File pyramid = key != null ? cache.get(key) : null;
+        if (key != null && pyramid != null) {
+            try {
+                TileDecoder decoder = PyramidTileDecoder.open(pyramid, TiledImageDrawable.TILE_SIZE);
+                return new LoadedSource(header, decoder, null);
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable tile pyramid of " + source, e);
+                cache.remove(key);
+            }
+        }
+        return new LoadedSource(header, new RegionTileDecoder(source, context, header), key);
+    }
+
+    /**
+     * Sets the overlay whose markers are drawn on top of the image and follow it as it is panned
+     * and scaled.
+     *
+     * @param overlay the overlay, or {@code null} to remove it
+     */
+    public void setMarkerOverlay(@Nullable MarkerOverlay overlay) {
+        if (mMarkerOverlay != null) {
+            mMarkerOverlay.setHost(null);
+        }
+        mMarkerOverlay = overlay;
+        if (overlay != null) {
+            overlay.setHost(this);
+        }
+        invalidate();
+    }
+
+    void setViewportGroup(@Nullable ViewportGroup group) {
+        if (mViewportGroup != null && group != null && mViewportGroup != group) {
+            mViewportGroup.removeView(this);
+        }
+        mViewportGroup = group;
+    }
+
+    float getCurrentScale() {
+        return mCurrentScale;
+    }
+
+    /**
+     * @return the horizontal translation as a share of the width of the fitted image, which
+     * carries over to views of a different size
+     */
+    float getRelativeTranslationX() {
+        getBaseMatrix().getValues(mMatrixValues);
+        float fittedWidth = mBaseDrawableWidth * mMatrixValues[Matrix.MSCALE_X];
+        return fittedWidth > 0f ? mCurrentTranslation.x / fittedWidth : NO_TRANSLATION;
+    }
+
+    /**
+     * @return the vertical translation as a share of the height of the fitted image
+     */
+    float getRelativeTranslationY() {
+        getBaseMatrix().getValues(mMatrixValues);
+        float fittedHeight = mBaseDrawableHeight * mMatrixValues[Matrix.MSCALE_Y];
+        return fittedHeight > 0f ? mCurrentTranslation.y / fittedHeight : NO_TRANSLATION;
+    }
+
+    /**
+     * Takes on the transform of another view of the {@link ViewportGroup}, on top of this view's
+     * own fit-center base. Any running fling or animation of this view is stopped.
+     */
+    void applyLinkedTransform(float scale, float relativeTranslationX, float relativeTranslationY) {
+        mFlingRunnable.stop();
+        mTransformAnimation.stop();
+
+        if (Float.compare(scale, NO_SCALE) == 0) {
+            if (isScaled() || ScaleType.MATRIX.equals(getScaleType())) {
+                completeScalingReset();
+            }
+            return;
+        }
+
+        getBaseMatrix().getValues(mMatrixValues);
+        mCurrentScale = calculateNewScale(scale, NO_SCALE);
+        mCurrentTranslation.set(
+                relativeTranslationX * mBaseDrawableWidth * mMatrixValues[Matrix.MSCALE_X],
+                relativeTranslationY * mBaseDrawableHeight * mMatrixValues[Matrix.MSCALE_Y]);
+        if (!ScaleType.MATRIX.equals(getScaleType())) {
+            setScaleType(ScaleType.MATRIX);
+        }
+        updateMatrix();
+        commitMatrix();
+    }
+
+    /**
+     * Returns the counters of the tile cache used in tiled mode.
+     *
+     * @return the current stats, or {@code null} if no tiled image has been shown yet
+     * @see #setImageRegionDecoder(BitmapRegionDecoder)
+     */
+    @Nullable
+    public TileCacheStats getTileCacheStats() {
+        return mTileCache != null ? mTileCache.getStats() : null;
+    }
+
+    /**
+     * Sets how many bytes all {@link ScalableImageView}s of the process may use for their images
+     * together. Once over budget, off-screen views release their decoded tiles and higher
+     * resolution sources first, and the zoomed view on screen last. Defaults to a quarter of the
+     * heap.
+     *
+     * @see ResolutionProvider#onResolutionReleased(ScalableImageView)
+     */
+    public static void setImageMemoryBudget(Context context, long budgetBytes) {
+        ImageMemoryCoordinator.getInstance(context).setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Returns the number of bytes used by the image of this view: its bitmap, if any, and its
+     * decoded tiles.
+     */
+    long getImageMemoryBytes() {
+        long bytes = 0L;
+        if (mTileCache != null) {
+            bytes += mTileCache.size() + mTileCache.getBitmapPool().getSizeBytes();
+        }
+        Drawable drawable = getDrawable();
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        if (mRasterizer != null) {
+            bytes += mRasterizer.getSizeBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns how important the image of this view is to the user, one of
+     * {@link #MEMORY_PRIORITY_OFF_SCREEN}, {@link #MEMORY_PRIORITY_ON_SCREEN} and
+     * {@link #MEMORY_PRIORITY_ZOOMED}.
+     */
+    int getMemoryPriority() {
+        if (!isShown() || !getGlobalVisibleRect(mTempVisibleRect)) {
+            return MEMORY_PRIORITY_OFF_SCREEN;
+        }
+        return isScaled() ? MEMORY_PRIORITY_ZOOMED : MEMORY_PRIORITY_ON_SCREEN;
+    }
+
+    /**
+     * Releases image memory according to the trim level of the {@link ImageMemoryCoordinator} and
+     * how important this view currently is.
+     *
+     * @return the number of bytes released
+     */
+    long trimImageMemory(int level) {
+        int priority = getMemoryPriority();
+        boolean isOffScreen = priority == MEMORY_PRIORITY_OFF_SCREEN;
+        boolean downgrade = isOffScreen ||
+                (level >= ImageMemoryCoordinator.TRIM_ALL_BUT_ZOOMED && priority == MEMORY_PRIORITY_ON_SCREEN);
+        boolean trimCaches = downgrade || level >= ImageMemoryCoordinator.TRIM_CACHES;
+        if (!trimCaches) {
+            return 0L;
+        }
+
+        long before = getImageMemoryBytes();
+        if (mTileCache != null) {
+            if (downgrade) {
+                mTileCache.evictAll();
+            } else {
+                // Tiles that are still visible were used last, so they are kept the longest
+                mTileCache.trimToSize(mTileCache.size() / 2);
+            }
+            mTileCache.getBitmapPool().clear();
+            mIsViewportStale = true;
+        }
+        if (mRasterizer != null) {
+            // Rasterized again at the current scale by the next draw
+            mRasterizer.invalidate();
+        }
+        if (downgrade && mResolutionProvider != null && mRequestedResolutionWidth > 0) {
+            mResolutionProvider.onResolutionReleased(this);
+            // Ask again once the view is zoomed in
+            mRequestedResolutionWidth = 0;
+        }
+        return Math.max(0L, before - getImageMemoryBytes());
+    }
+
+    private TileCache getTileCache() {
+        if (mTileCache == null) {
+            long maxSizeBytes = Runtime.getRuntime().maxMemory() / TILE_CACHE_MEMORY_DIVISOR;
+            mTileCache = new TileCache((int) Math.min(Integer.MAX_VALUE, maxSizeBytes));
+        }
+        return mTileCache;
+    }
+
+    @Override
+    public void setImageResource(@DrawableRes int resId) {
+        cancelSourceLoad();
+        super.setImageResource(resId);
+        invalidateBaseMatrix();
+    }
+
+    @Override
+    public void setImageURI(@Nullable Uri uri) {
+        cancelSourceLoad();
+        super.setImageURI(uri);
+        invalidateBaseMatrix();
+    }
+
+    @Override
+    public void setPadding(int left, int top, int right, int bottom) {
+        super.setPadding(left, top, right, bottom);
+        invalidateBaseMatrix();
+    }
+
+    @Override
+    public void setPaddingRelative(int start, int top, int end, int bottom) {
+        super.setPaddingRelative(start, top, end, bottom);
+        invalidateBaseMatrix();
+    }
+
     @Override
     public boolean onTouchEvent(@NonNull MotionEvent event) {
+        final PerformanceMonitor monitor = mPerformanceMonitor;
+        if (monitor == null) {
+            return handleTouchEvent(event);
+        }
+
+        long start = System.nanoTime();
+        boolean handled = handleTouchEvent(event);
+        monitor.recordTouchEvent(System.nanoTime() - start);
+        return handled;
+    }
+
+    private boolean handleTouchEvent(MotionEvent event) {
         if (!mIsScalable) {
             return super.onTouchEvent(event);
         }
 
+        // Track velocity for prefetching. This also picks up the historical samples of the event.
+        if (mVelocityTracker == null) {
+            mVelocityTracker = VelocityTracker.obtain();
+        }
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            mVelocityTracker.clear();
+
+            // Take over from any running fling or animation right where it is. This has to happen
+            // before the gesture detectors see the event, as a double tap starts a new animation.
+            mFlingRunnable.stop();
+            mTransformAnimation.stop();
+            mNestedOffsetX = mNestedOffsetY = 0f;
+        }
+        // Track the velocity on the screen rather than in the view, which nested scrolling parents
+        // may be moving around underneath the pointer
+        event.offsetLocation(mNestedOffsetX, mNestedOffsetY);
+        mVelocityTracker.addMovement(event);
+        event.offsetLocation(-mNestedOffsetX, -mNestedOffsetY);
+
         // Check for a scroll event
         mScaleGestureDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
 
         boolean requestAllowParentIntercept = false;
         boolean handled = false;
         switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
                 mIsMultiPointerEventSeries = false;
+                clearVelocity();
                 mInitialCoordinates.x = event.getX();
                 mInitialCoordinates.y = event.getY();
                 mPreviousCoordinates.x = event.getX();
                 mPreviousCoordinates.y = event.getY();
-                // Disable the parent from intercepting touches until we have more information about
-                // the nature of the event. This is necessary when the view is embedded in one or
-                // more scrollable parents.
-                getParent().requestDisallowInterceptTouchEvent(true);
+                // Pan from the down position, so that the first move isn't lost
+                mLastPointerId = event.getPointerId(0);
+                mNestedScrollRemainder.set(NO_TRANSLATION, NO_TRANSLATION);
+                // A nested scrolling parent won't intercept along the axes it accepted and is handed
+                // the pan deltas the image can't use instead. Any other parent is disabled from
+                // intercepting touches until we have more information about the nature of the
+                // event. This is necessary when the view is embedded in one or more scrollable
+                // parents.
+                if (!startNestedScroll(ViewCompat.SCROLL_AXIS_HORIZONTAL | ViewCompat.SCROLL_AXIS_VERTICAL)) {
+                    getParent().requestDisallowInterceptTouchEvent(true);
+                }
                 break;
             case MotionEvent.ACTION_MOVE:
+                mNestedScrollOffset[0] = mNestedScrollOffset[1] = 0;
                 if (event.getPointerCount() > 1) {
                     // If at any point in this series of events we have more than one pointer, we'll
                     // update this flag to indicate that (a) we should not allow parent intercepts
@@ -144,39 +770,74 @@ public class ScalableImageView extends AppCompatImageView {
 
                     // This will keep track of total pan attempts so that we can decide to consume
                     // the final cancel/up event even if no actual panning occurred.
-                    PointF initialDiff = new PointF(event.getX() - mInitialCoordinates.x,
+                    float initialDiff = PointF.length(event.getX() - mInitialCoordinates.x,
                             event.getY() - mInitialCoordinates.y);
-                    mAttemptedPanMax = Math.max(initialDiff.length(), mAttemptedPanMax);
+                    mAttemptedPanMax = Math.max(initialDiff, mAttemptedPanMax);
 
                     // Check the raw value (before possibly truncating) to see if the event should
                     // be considered handled
-                    PointF diff = new PointF(event.getX() - mPreviousCoordinates.x,
+                    PointF diff = mTranslationDelta;
+                    diff.set(event.getX() - mPreviousCoordinates.x,
                             event.getY() - mPreviousCoordinates.y);
                     handled = (Float.compare(diff.length(), mTouchSlop) > 0);
-                    diff = getTranslationInBounds(diff, ScalableImageView.this, mMatrix);
+                    float requestedX = diff.x;
+                    float requestedY = diff.y;
+                    getTranslationInBounds(diff, mMatrix);
                     mCurrentTranslation.x += diff.x;
                     mCurrentTranslation.y += diff.y;
+                    mVelocityTracker.computeCurrentVelocity(1000);
+                    mPanVelocityX = mVelocityTracker.getXVelocity(mLastPointerId);
+                    mPanVelocityY = mVelocityTracker.getYVelocity(mLastPointerId);
                     if (Float.compare(diff.length(), NO_TRANSLATION) != 0) {
                         // We've panned. Update the matrix and consume the event.
                         mMatrix.postTranslate(diff.x, diff.y);
-                        setImageMatrix(mMatrix);
+                        requestMatrixCommit();
+                    }
+                    // Whatever is left once the image hits an edge scrolls the parent
+                    if (!mIsMultiPointerEventSeries &&
+                            dispatchNestedPan(diff.x, diff.y, requestedX - diff.x, requestedY - diff.y)) {
+                        mIsNestedDragging = true;
                     }
                 } else {
                     // Unless there is a second pointer (or we're below a threshold), indicate that
-                    // we should now allow the parent to intercept events to allow for scrolling.
-                    PointF diff = new PointF(event.getX() - mInitialCoordinates.x,
+                    // we should now allow the parent to scroll.
+                    float diff = PointF.length(event.getX() - mInitialCoordinates.x,
                             event.getY() - mInitialCoordinates.y);
                     if (!mIsMultiPointerEventSeries &&
-                            Float.compare(diff.length(), mTouchSlop) > 0) {
-                        requestAllowParentIntercept = true;
+                            (mIsNestedDragging || Float.compare(diff, mTouchSlop) > 0)) {
+                        if (hasNestedScrollingParent()) {
+                            // The image can't pan, so the parent gets all of it
+                            mIsNestedDragging = true;
+                            handled = dispatchNestedPan(NO_TRANSLATION, NO_TRANSLATION,
+                                    event.getX() - mPreviousCoordinates.x,
+                                    event.getY() - mPreviousCoordinates.y);
+                        } else {
+                            requestAllowParentIntercept = true;
+                        }
                     }
                 }
-                mPreviousCoordinates.x = event.getX();
-                mPreviousCoordinates.y = event.getY();
+                mPreviousCoordinates.x = event.getX() - mNestedScrollOffset[0];
+                mPreviousCoordinates.y = event.getY() - mNestedScrollOffset[1];
                 break;
             case MotionEvent.ACTION_CANCEL:
             case MotionEvent.ACTION_UP:
+                boolean canFlingImage = mLastPointerId != NO_POINTER && isScaled();
+                if (event.getActionMasked() == MotionEvent.ACTION_UP && !mScaleGestureDetector.isInProgress() &&
+                        (canFlingImage || mIsNestedDragging)) {
+                    int pointerId = canFlingImage ? mLastPointerId : event.getPointerId(0);
+                    mVelocityTracker.computeCurrentVelocity(1000, mMaximumFlingVelocity);
+                    float velocityX = mVelocityTracker.getXVelocity(pointerId);
+                    float velocityY = mVelocityTracker.getYVelocity(pointerId);
+                    if (PointF.length(velocityX, velocityY) > mMinimumFlingVelocity) {
+                        fling(velocityX, velocityY, canFlingImage);
+                    }
+                }
+                stopNestedScroll();
+                mIsNestedDragging = false;
                 mLastPointerId = NO_POINTER;
+                if (!mFlingRunnable.isRunning()) {
+                    clearVelocity();
+                }
                 if (hasScaled() || hasAttemptedPan() || hasAttemptedScale()) {
                     handled = true;
                 }
@@ -184,9 +845,9 @@ public class ScalableImageView extends AppCompatImageView {
                 break;
         }
 
-        // Notify the parent that it may now intercept events (if necessary). Note that we only
-        // want to do this if we haven't manually handled the event to avoid a nasty bug in
-        // DrawerLayout
+        // Notify a parent without nested scrolling support that it may now intercept events (if
+        // necessary). Note that we only want to do this if we haven't manually handled the event
+        // to avoid a nasty bug in DrawerLayout
         if (!handled && requestAllowParentIntercept) {
             getParent().requestDisallowInterceptTouchEvent(false);
         }
@@ -194,51 +855,575 @@ public class ScalableImageView extends AppCompatImageView {
         return handled || mIsMultiPointerEventSeries || super.onTouchEvent(event);
     }
 
-    private float calculateNewScale(float oldScale, float newScale) {
-        // For now minimum scale is fixed at 1f
-        return calculateNewScale(oldScale, newScale, NO_SCALE, mMaxScale);
-    }
-
-    private float calculateNewScale(float oldScale, float newScale, float minScale, float maxScale) {
-        return Math.max(minScale, Math.min(oldScale * newScale, maxScale));
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mMemoryCoordinator = ImageMemoryCoordinator.getInstance(getContext());
+        mMemoryCoordinator.register(this);
     }
 
-    private void completeScalingReset() {
-        mMatrix.reset();
-        mCurrentTranslation.x = NO_TRANSLATION;
-        mCurrentTranslation.y = NO_TRANSLATION;
-        mCurrentScale = NO_SCALE;
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mIsViewportStale) {
+            // Tiles were dropped to save memory; decode the visible ones again
+            mIsViewportStale = false;
+            dispatchViewportChanged();
+        }
 
-        if (!ScaleType.FIT_CENTER.equals(getScaleType())) {
-            setScaleType(ScaleType.FIT_CENTER);
+        Drawable drawable = getDrawable();
+        if (!drawImage(canvas, drawable)) {
+            super.onDraw(canvas);
+        }
+        if (mMarkerOverlay != null && drawable != null) {
+            drawMarkers(canvas, mMarkerOverlay, drawable);
         }
     }
 
-    public void init() {
-        final Context context = getContext();
-        mScaleGestureDetector = new ScaleGestureDetector(context, mScaleListener);
-        mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+    /**
+     * Draws the drawable in a cheaper way than {@link ImageView} would, if there is one.
+     *
+     * @return whether the drawable was drawn
+     */
+    private boolean drawImage(Canvas canvas, @Nullable Drawable drawable) {
+        // Vector drawables can be set without going through setImageDrawable(), so check here
+        if (DrawableRasterizer.canRasterize(drawable)) {
+            if (mRasterizer == null) {
+                mRasterizer = new DrawableRasterizer(this);
+            }
+            mRasterizer.setDrawable(drawable);
+            if (drawRasterized(canvas)) {
+                return true;
+            }
+        } else if (mRasterizer != null) {
+            mRasterizer.setDrawable(null);
+        }
+        return drawable instanceof BitmapDrawable && drawVisibleBitmapRegion(canvas, (BitmapDrawable) drawable);
     }
 
-    private boolean hasAttemptedPan() {
-        return Float.compare(mAttemptedPanMax, mTouchSlop) > 0f;
-    }
+    private void drawMarkers(Canvas canvas, MarkerOverlay overlay, Drawable drawable) {
+        Matrix matrix = getImageMatrix();
+        if (!getVisibleImageRect(matrix, mDrawVisibleRect)) {
+            return;
+        }
+        matrix.getValues(mMatrixValues);
+        Rect bounds = drawable.getBounds();
 
-    private boolean hasAttemptedScale() {
-        return Float.compare(mAttemptedScaleMax, NO_SCALE) != 0f ||
-                Float.compare(mAttemptedScaleMin, NO_SCALE) != 0f;
+        int saveCount = saveForPaddedDraw(canvas);
+        overlay.draw(canvas, matrix, mDrawVisibleRect, mMatrixValues[Matrix.MSCALE_X],
+                bounds.width(), bounds.height());
+        canvas.restoreToCount(saveCount);
     }
 
-    private boolean hasScaled() {
-        return Float.compare(mCurrentScaleMin, mCurrentScaleMax) != 0;
-    }
+    /**
+     * Hands a tap to the marker overlay, if any.
+     *
+     * @return whether a marker consumed the tap
+     */
+    private boolean dispatchMarkerTap(float x, float y) {
+        Drawable drawable = getDrawable();
+        if (mMarkerOverlay == null || drawable == null) {
+            return false;
+        }
 
-    public boolean isScalable() {
-        return mIsScalable;
+        Matrix matrix = getImageMatrix();
+        if (!matrix.invert(mDrawInverseMatrix)) {
+            return false;
+        }
+        float[] point = mTapPoint;
+        point[0] = x - getPaddingLeft();
+        point[1] = y - getPaddingTop();
+        mDrawInverseMatrix.mapPoints(point);
+        matrix.getValues(mMatrixValues);
+        Rect bounds = drawable.getBounds();
+        return mMarkerOverlay.dispatchTap(this, point[0], point[1], mMatrixValues[Matrix.MSCALE_X],
+                bounds.width(), bounds.height());
     }
 
-    public boolean isScaled() {
-        return Float.compare(mCurrentScale, NO_SCALE) != 0;
+    /**
+     * Sets the part of the view the drawable can show up in, mapped to drawable coordinates.
+     *
+     * @return whether the matrix could be inverted
+     */
+    private boolean getVisibleImageRect(Matrix matrix, RectF visibleRect) {
+        if (!matrix.invert(mDrawInverseMatrix)) {
+            return false;
+        }
+        if (getCropToPadding()) {
+            visibleRect.set(0, 0, getViewWidthMinusPadding(this), getViewHeightMinusPadding(this));
+        } else {
+            visibleRect.set(-getPaddingLeft(), -getPaddingTop(),
+                    getWidth() - getPaddingLeft(), getHeight() - getPaddingTop());
+        }
+        visibleRect.offset(getScrollX(), getScrollY());
+        mDrawInverseMatrix.mapRect(visibleRect);
+        return true;
+    }
+
+    /**
+     * Draws only the part of a bitmap that is visible in the view. At high zoom most of the bitmap
+     * is outside the view, and ImageView would still draw all of it under the image matrix.
+     * <p>
+     * Only used before Lollipop. From then on a bitmap drawable can be tinted, by the view, through
+     * {@link DrawableCompat#setTint} or in XML, and it applies its tint only inside its own
+     * {@code draw()} without any way to read it back.
+     *
+     * @return whether the bitmap was handled, else it has to be drawn by {@link ImageView}
+     */
+    private boolean drawVisibleBitmapRegion(Canvas canvas, BitmapDrawable drawable) {
+        Bitmap bitmap = drawable.getBitmap();
+        Rect bounds = drawable.getBounds();
+        // Anything that changes how the drawable maps the bitmap to its bounds, or its tint, is left
+        // to it
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                || bitmap == null || bounds.isEmpty()
+                || drawable.getTileModeX() != null || drawable.getTileModeY() != null
+                || drawable.getGravity() != Gravity.FILL || DrawableCompat.isAutoMirrored(drawable)) {
+            return false;
+        }
+
+        Matrix matrix = getImageMatrix();
+        RectF visibleRect = mDrawVisibleRect;
+        if (!getVisibleImageRect(matrix, visibleRect)) {
+            return false;
+        }
+        if (!visibleRect.intersect(bounds.left, bounds.top, bounds.right, bounds.bottom)) {
+            // Panned completely out of view
+            return true;
+        }
+        if (visibleRect.width() * visibleRect.height() >
+                bounds.width() * bounds.height() * FULL_DRAW_VISIBLE_FRACTION) {
+            return false;
+        }
+
+        // Round out to whole bitmap pixels so that filtering at the edges stays the same
+        float scaleX = bitmap.getWidth() / (float) bounds.width();
+        float scaleY = bitmap.getHeight() / (float) bounds.height();
+        Rect sourceRect = mDrawSourceRect;
+        sourceRect.set(
+                (int) Math.floor((visibleRect.left - bounds.left) * scaleX),
+                (int) Math.floor((visibleRect.top - bounds.top) * scaleY),
+                (int) Math.ceil((visibleRect.right - bounds.left) * scaleX),
+                (int) Math.ceil((visibleRect.bottom - bounds.top) * scaleY));
+        if (!sourceRect.intersect(0, 0, bitmap.getWidth(), bitmap.getHeight())) {
+            return true;
+        }
+        mDrawDestinationRect.set(
+                bounds.left + sourceRect.left / scaleX,
+                bounds.top + sourceRect.top / scaleY,
+                bounds.left + sourceRect.right / scaleX,
+                bounds.top + sourceRect.bottom / scaleY);
+
+        int saveCount = saveForImageDraw(canvas, matrix);
+        canvas.drawBitmap(bitmap, sourceRect, mDrawDestinationRect, drawable.getPaint());
+        canvas.restoreToCount(saveCount);
+        return true;
+    }
+
+    /**
+     * Applies padding and the image matrix to the canvas the way {@link ImageView} does before it
+     * draws its drawable.
+     *
+     * @return the save count to restore the canvas to
+     */
+    private int saveForImageDraw(Canvas canvas, Matrix matrix) {
+        int saveCount = saveForPaddedDraw(canvas);
+        canvas.concat(matrix);
+        return saveCount;
+    }
+
+    /**
+     * Applies padding to the canvas, i.e. moves it to the coordinates the image matrix maps to.
+     *
+     * @return the save count to restore the canvas to
+     */
+    private int saveForPaddedDraw(Canvas canvas) {
+        int saveCount = canvas.save();
+        if (getCropToPadding()) {
+            int scrollX = getScrollX();
+            int scrollY = getScrollY();
+            canvas.clipRect(scrollX + getPaddingLeft(), scrollY + getPaddingTop(),
+                    scrollX + getWidth() - getPaddingRight(), scrollY + getHeight() - getPaddingBottom());
+        }
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        return saveCount;
+    }
+
+    /**
+     * Draws the drawable from a bitmap rasterized at the current scale.
+     *
+     * @return whether a bitmap was drawn
+     */
+    private boolean drawRasterized(Canvas canvas) {
+        Matrix matrix = getImageMatrix();
+        matrix.getValues(mMatrixValues);
+
+        int saveCount = saveForImageDraw(canvas, matrix);
+        boolean isDrawn = mRasterizer != null
+                && mRasterizer.draw(canvas, mMatrixValues[Matrix.MSCALE_X], mIsLowCostMode);
+        canvas.restoreToCount(saveCount);
+        return isDrawn;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mMemoryCoordinator != null) {
+            mMemoryCoordinator.unregister(this);
+            mMemoryCoordinator = null;
+        }
+        mFlingRunnable.stop();
+        mTransformAnimation.stop();
+        stopNestedScroll();
+        mIsNestedDragging = false;
+        // A pinch interrupted by the detach never ends, don't leave decodes paused
+        mIsScaling = false;
+        updateMotionState();
+        if (mIsMatrixFrameCallbackPending) {
+            mIsMatrixFrameCallbackPending = false;
+            removeCallbacks(mMatrixFrameCallback);
+            setImageMatrix(mMatrix);
+        }
+        if (mVelocityTracker != null) {
+            mVelocityTracker.recycle();
+            mVelocityTracker = null;
+        }
+        if (mViewportGroup != null) {
+            // Last, the transform may have changed above
+            mViewportGroup.onViewDetached(this);
+        }
+    }
+
+    private float calculateNewScale(float oldScale, float newScale) {
+        // For now minimum scale is fixed at 1f
+        return calculateNewScale(oldScale, newScale, NO_SCALE, mMaxScale);
+    }
+
+    private float calculateNewScale(float oldScale, float newScale, float minScale, float maxScale) {
+        return ViewportTransform.getNewScale(oldScale, newScale, minScale, maxScale);
+    }
+
+    /**
+     * Re-evaluates whether the view is in motion, i.e. pinching, flinging or animating, and
+     * notifies anything that behaves differently while it is.
+     * <p>
+     * While pinching or animating, the view also drops to low-cost mode: background decodes are
+     * paused, bitmaps are drawn without filtering and drawables draw what they already have.
+     * Flings keep full quality since they rely on prefetching the tiles they are heading for.
+     */
+    private void updateMotionState() {
+        boolean isInMotion = mIsScaling || mIsAnimating || mFlingRunnable.isRunning();
+        if (isInMotion != mIsInMotion) {
+            mIsInMotion = isInMotion;
+            if (mPerformanceMonitor != null) {
+                mPerformanceMonitor.setInMotion(isInMotion);
+            }
+        }
+
+        boolean isLowCostMode = mIsScaling || mIsAnimating;
+        if (isLowCostMode == mIsLowCostMode) {
+            return;
+        }
+
+        mIsLowCostMode = isLowCostMode;
+        setLowCostMode(getDrawable(), isLowCostMode);
+        if (isLowCostMode) {
+            TileDecodeScheduler.getInstance().pause();
+        } else {
+            TileDecodeScheduler.getInstance().resume();
+            // Catch up on the work skipped meanwhile
+            dispatchViewportChanged();
+        }
+    }
+
+    /**
+     * Turns bitmap filtering of the drawable off in low-cost mode, and restores its own setting
+     * afterwards. Drawables whose setting can't be read are left alone.
+     */
+    private void setLowCostMode(@Nullable Drawable drawable, boolean isLowCostMode) {
+        if (drawable instanceof ViewportAwareDrawable) {
+            // Skips filtering on its own
+            ((ViewportAwareDrawable) drawable).setLowCostMode(isLowCostMode);
+        } else if (drawable != null && isLowCostMode) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mLowCostRestoreFilterBitmap = drawable.isFilterBitmap();
+            } else if (drawable instanceof BitmapDrawable) {
+                mLowCostRestoreFilterBitmap = ((BitmapDrawable) drawable).getPaint().isFilterBitmap();
+            } else {
+                return;
+            }
+            mIsLowCostFilterBitmapOverridden = true;
+            drawable.setFilterBitmap(false);
+        } else if (drawable != null && mIsLowCostFilterBitmapOverridden) {
+            mIsLowCostFilterBitmapOverridden = false;
+            drawable.setFilterBitmap(mLowCostRestoreFilterBitmap);
+        }
+    }
+
+    private void clearVelocity() {
+        mPanVelocityX = 0f;
+        mPanVelocityY = 0f;
+        mScaleVelocity = 0f;
+    }
+
+    /**
+     * Applies {@link #mMatrix} to the view in response to an input event. When coalescing, all
+     * updates received within a frame are committed once at the next animation frame, otherwise
+     * right away. {@link #mMatrix} itself is always up to date so clamping keeps working on the
+     * latest transform in between.
+     */
+    private void requestMatrixCommit() {
+        mMatrixUpdateCount++;
+        if (!mIsCoalescingMatrixUpdates) {
+            commitMatrix();
+        }
+
+        // Without coalescing, the frame is only waited for to count it for the stats
+        if (!mIsMatrixFrameCallbackPending && (mIsCoalescingMatrixUpdates || mPerformanceMonitor != null)) {
+            mIsMatrixFrameCallbackPending = true;
+            postOnAnimation(mMatrixFrameCallback);
+        }
+    }
+
+    private final Runnable mMatrixFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            mIsMatrixFrameCallbackPending = false;
+            mMatrixUpdateFrameCount++;
+            if (mIsCoalescingMatrixUpdates) {
+                commitMatrix();
+            }
+        }
+    };
+
+    /**
+     * Hands {@link #mMatrix} to the view, unless it equals the matrix committed last, e.g. while
+     * panning against an edge. An unchanged transform then costs neither a redraw nor a viewport
+     * dispatch.
+     */
+    private void commitMatrix() {
+        if (mIsCommittedMatrixValid && mCommittedMatrix.equals(mMatrix)) {
+            return;
+        }
+        mMatrixCommitCount++;
+        setImageMatrix(mMatrix);
+    }
+
+    private void completeScalingReset() {
+        mMatrix.reset();
+        mCurrentTranslation.x = NO_TRANSLATION;
+        mCurrentTranslation.y = NO_TRANSLATION;
+        mCurrentScale = NO_SCALE;
+
+        if (!ScaleType.FIT_CENTER.equals(getScaleType())) {
+            setScaleType(ScaleType.FIT_CENTER);
+        }
+        if (mViewportGroup != null) {
+            mViewportGroup.onTransformChanged(this);
+        }
+    }
+
+    /**
+     * Returns the cached fit-center matrix that all scaling and panning is applied on top of. It is
+     * only recomputed after {@link #invalidateBaseMatrix()}.
+     */
+    private Matrix getBaseMatrix() {
+        if (mIsBaseMatrixDirty) {
+            getFitCenterMatrix(mBaseMatrix);
+            Drawable drawable = getDrawable();
+            mBaseDrawableWidth = drawable != null ? drawable.getIntrinsicWidth() : 0;
+            mBaseDrawableHeight = drawable != null ? drawable.getIntrinsicHeight() : 0;
+            mIsBaseMatrixDirty = false;
+        }
+        return mBaseMatrix;
+    }
+
+    /**
+     * Marks the base matrix as stale. If the image is currently scaled the transform is rebuilt on
+     * top of the new base matrix so that the current scale and pan are kept.
+     */
+    private void invalidateBaseMatrix() {
+        // This is also reached from the super constructor, before any fields are initialized
+        mIsBaseMatrixDirty = true;
+        if (mMatrix != null && isScaled() && ScaleType.MATRIX.equals(getScaleType())) {
+            updateMatrix();
+            setImageMatrix(mMatrix);
+        }
+    }
+
+    /**
+     * Tells a {@link ViewportAwareDrawable} which part of it is currently visible and at which
+     * scale it is being drawn.
+     */
+    private void dispatchViewportChanged() {
+        Drawable drawable = getDrawable();
+        // This is also reached from the super constructor, before any fields are initialized
+        if (!(drawable instanceof ViewportAwareDrawable) || mMatrix == null) {
+            return;
+        }
+
+        int viewWidth = getViewWidthMinusPadding(this);
+        int viewHeight = getViewHeightMinusPadding(this);
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return;
+        }
+
+        Matrix matrix = ScaleType.MATRIX.equals(getScaleType()) ? mMatrix : getBaseMatrix();
+        if (!matrix.invert(mInverseMatrix)) {
+            return;
+        }
+
+        RectF visibleRect = mVisibleDrawableRect;
+        visibleRect.set(0, 0, viewWidth, viewHeight);
+        mInverseMatrix.mapRect(visibleRect);
+        if (!visibleRect.intersect(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight())) {
+            visibleRect.setEmpty();
+        }
+
+        matrix.getValues(mMatrixValues);
+        float scale = mMatrixValues[Matrix.MSCALE_X];
+        float predictedScale = predictViewport(visibleRect, scale, mPredictedDrawableRect);
+        if (!mPredictedDrawableRect.intersect(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight())) {
+            mPredictedDrawableRect.setEmpty();
+        }
+
+        ((ViewportAwareDrawable) drawable).onViewportChanged(visibleRect, scale,
+                mPredictedDrawableRect, predictedScale);
+    }
+
+    /**
+     * Asks the {@link ResolutionProvider} for a bigger source once a drawable pixel covers more than
+     * one screen pixel. The size asked for keeps the image sharp up to the maximum scale, so that a
+     * single request covers the whole zoom range.
+     */
+    private void checkResolution() {
+        Drawable drawable = getDrawable();
+        if (mResolutionProvider == null || drawable == null || !isScaled()) {
+            return;
+        }
+
+        int drawableWidth = drawable.getIntrinsicWidth();
+        int drawableHeight = drawable.getIntrinsicHeight();
+        if (drawableWidth <= 0 || drawableHeight <= 0) {
+            return;
+        }
+
+        getBaseMatrix().getValues(mMatrixValues);
+        float fitScale = mMatrixValues[Matrix.MSCALE_X];
+        if (mCurrentScale * fitScale <= NO_SCALE) {
+            // The drawable still has at least as many pixels as the screen shows
+            return;
+        }
+
+        float maxDisplayedScale = fitScale * mMaxScale;
+        int requiredWidth = (int) Math.ceil(drawableWidth * maxDisplayedScale);
+        if (requiredWidth <= mRequestedResolutionWidth) {
+            return;
+        }
+        mRequestedResolutionWidth = requiredWidth;
+        mResolutionProvider.onResolutionRequired(this, requiredWidth,
+                (int) Math.ceil(drawableHeight * maxDisplayedScale));
+    }
+
+    /**
+     * Extrapolates where the viewport will be {@link #PREFETCH_LOOKAHEAD_SECONDS} from now, given the
+     * current pan and pinch velocity.
+     *
+     * @param visibleRect   the visible part of the drawable, in intrinsic drawable coordinates
+     * @param scale         the current number of screen pixels per intrinsic drawable pixel
+     * @param predictedRect receives the predicted visible part of the drawable
+     * @return the predicted number of screen pixels per intrinsic drawable pixel
+     */
+    private float predictViewport(RectF visibleRect, float scale, RectF predictedRect) {
+        predictedRect.set(visibleRect);
+        if (scale <= 0f) {
+            return scale;
+        }
+
+        // The content follows the finger, so the viewport moves the opposite way
+        predictedRect.offset(-mPanVelocityX * PREFETCH_LOOKAHEAD_SECONDS / scale,
+                -mPanVelocityY * PREFETCH_LOOKAHEAD_SECONDS / scale);
+
+        getBaseMatrix().getValues(mMatrixValues);
+        float minScale = mMatrixValues[Matrix.MSCALE_X];
+        float maxScale = minScale * mMaxScale;
+        float predictedScale = scale * (float) Math.exp(mScaleVelocity * PREFETCH_LOOKAHEAD_SECONDS);
+        predictedScale = Math.max(minScale, Math.min(predictedScale, maxScale));
+
+        // Grow or shrink the viewport around its center for the predicted scale
+        float ratio = scale / predictedScale;
+        float halfWidth = predictedRect.width() * ratio * 0.5f;
+        float halfHeight = predictedRect.height() * ratio * 0.5f;
+        float centerX = predictedRect.centerX();
+        float centerY = predictedRect.centerY();
+        predictedRect.set(centerX - halfWidth, centerY - halfHeight,
+                centerX + halfWidth, centerY + halfHeight);
+        return predictedScale;
+    }
+
+    public void init() {
+        final Context context = getContext();
+        mScaleGestureDetector = new ScaleGestureDetector(context, mScaleListener);
+        mGestureDetector = new GestureDetector(context, mGestureListener);
+        mFlingRunnable = new FlingRunnable(context);
+        mTransformAnimation = new TransformAnimation();
+
+        ViewConfiguration configuration = ViewConfiguration.get(context);
+        mTouchSlop = configuration.getScaledTouchSlop();
+        setNestedScrollingEnabled(true);
+        mMinimumFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        mMaximumFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+    }
+
+    private boolean hasAttemptedPan() {
+        return Float.compare(mAttemptedPanMax, mTouchSlop) > 0f;
+    }
+
+    private boolean hasAttemptedScale() {
+        return Float.compare(mAttemptedScaleMax, NO_SCALE) != 0f ||
+                Float.compare(mAttemptedScaleMin, NO_SCALE) != 0f;
+    }
+
+    private boolean hasScaled() {
+        return Float.compare(mCurrentScaleMin, mCurrentScaleMax) != 0;
+    }
+
+    public boolean isScalable() {
+        return mIsScalable;
+    }
+
+    public boolean isScaled() {
+        return Float.compare(mCurrentScale, NO_SCALE) != 0;
+    }
+
+    /**
+     * Drops the image and all transform, gesture and animation state, so that the view can be
+     * reused for another image, e.g. by a pager or {@code RecyclerView} adapter. Settings such as
+     * the maximum scale, matrix coalescing and the marker overlay are kept, while the resolution
+     * provider has to be set again for the next image. Doesn't allocate.
+     */
+    public void recycle() {
+        mFlingRunnable.stop();
+        mTransformAnimation.stop();
+        if (mIsMatrixFrameCallbackPending) {
+            mIsMatrixFrameCallbackPending = false;
+            removeCallbacks(mMatrixFrameCallback);
+        }
+        if (mVelocityTracker != null) {
+            mVelocityTracker.clear();
+        }
+        clearVelocity();
+        stopNestedScroll();
+        mIsNestedDragging = false;
+        mIsScaling = false;
+        mIsMultiPointerEventSeries = false;
+        mLastPointerId = NO_POINTER;
+        mResolutionProvider = null;
+        mRequestedResolutionWidth = 0;
+
+        completeScalingReset();
+        resetAllTransientStates();
+        updateMotionState();
+        setImageDrawable(null);
     }
 
     private void resetAllTransientStates() {
@@ -259,65 +1444,171 @@ public class ScalableImageView extends AppCompatImageView {
         mCurrentScaleMin = mCurrentScaleMax = mCurrentScale;
     }
 
+    /**
+     * Rebuilds {@link #mMatrix} from the base matrix, the current scale and the current
+     * translation. The translation is corrected so that the drawable stays in bounds.
+     */
+    private void updateMatrix() {
+        mMatrix.set(getBaseMatrix());
+
+        // Scale the matrix to the current scale around the view center
+        mMatrix.postScale(
+                mCurrentScale,
+                mCurrentScale,
+                getX() + getWidth() * 0.5f,
+                getY() + getHeight() * 0.5f);
+
+        getTranslationInBounds(mCurrentTranslation, mMatrix);
+        mMatrix.postTranslate(mCurrentTranslation.x, mCurrentTranslation.y);
+    }
+
     public void resetScaling() {
         resetScaling(false);
     }
 
     public void resetScaling(final boolean animate) {
-        if (mIsAnimating) {
-            return;
-        }
+        mFlingRunnable.stop();
+        mTransformAnimation.stop();
 
         if (!animate || mMatrix.isIdentity()) {
             completeScalingReset();
             return;
         }
 
-        ValueAnimator animator = ValueAnimator.ofFloat(mCurrentScale, NO_SCALE);
-        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
-            PointF lastTranslation = new PointF(mCurrentTranslation.x, mCurrentTranslation.y);
+        mTransformAnimation.start(NO_SCALE, NO_TRANSLATION, NO_TRANSLATION);
+    }
 
-            @Override
-            public void onAnimationUpdate(ValueAnimator animation) {
-                if (mMatrix.isIdentity()) {
-                    Log.e(TAG, "Identity matrix while animating");
-                    return;
-                }
+    /**
+     * Animates to the given scale while keeping the given point of the view fixed, as far as the
+     * drawable bounds allow.
+     *
+     * @param scale  the new scale, relative to the fit-center state
+     * @param focusX the x coordinate of the fixed point, in view coordinates
+     * @param focusY the y coordinate of the fixed point, in view coordinates
+     */
+    public void zoomTo(float scale, float focusX, float focusY) {
+        zoomTo(scale, focusX, focusY, true);
+    }
 
-                // Reset matrix
-                mMatrix.set(getFitCenterMatrix(ScalableImageView.this));
+    /**
+     * Zooms to the given scale while keeping the given point of the view fixed, as far as the
+     * drawable bounds allow. Any running fling or animation is interrupted.
+     *
+     * @param scale   the new scale, relative to the fit-center state
+     * @param focusX  the x coordinate of the fixed point, in view coordinates
+     * @param focusY  the y coordinate of the fixed point, in view coordinates
+     * @param animate whether to animate the transition
+     */
+    public void zoomTo(float scale, float focusX, float focusY, boolean animate) {
+        mFlingRunnable.stop();
+        mTransformAnimation.stop();
 
-                // Update scale
-                float scale = (float) animation.getAnimatedValue();
-                float centerX = getX() + getWidth() * 0.5f;
-                float centerY = getY() + getHeight() * 0.5f;
-                mMatrix.postScale(scale, scale, centerX, centerY);
+        float targetScale = calculateNewScale(NO_SCALE, scale);
+        if (Float.compare(targetScale, NO_SCALE) == 0) {
+            resetScaling(animate);
+            return;
+        }
 
-                // Update translation
-                float fraction = animation.getAnimatedFraction();
-                lastTranslation.x *= (1 - fraction);
-                lastTranslation.y *= (1 - fraction);
-                mMatrix.postTranslate(lastTranslation.x, lastTranslation.y);
+        // Solve for the translation that maps the focus point onto itself at the new scale, then
+        // keep it in bounds
+        float centerX = getX() + getWidth() * 0.5f;
+        float centerY = getY() + getHeight() * 0.5f;
+        PointF translation = mTranslationDelta;
+        translation.set(
+                ViewportTransform.getTranslationForFocus(focusX, centerX, mCurrentTranslation.x,
+                        mCurrentScale, targetScale),
+                ViewportTransform.getTranslationForFocus(focusY, centerY, mCurrentTranslation.y,
+                        mCurrentScale, targetScale));
+        mTargetMatrix.set(getBaseMatrix());
+        mTargetMatrix.postScale(targetScale, targetScale, centerX, centerY);
+        getTranslationInBounds(translation, mTargetMatrix);
+
+        if (animate) {
+            mTransformAnimation.start(targetScale, translation.x, translation.y);
+            return;
+        }
 
-                // Update matrix
-                setImageMatrix(mMatrix);
-            }
-        });
-        animator.addListener(new AnimatorListenerAdapter() {
-            @Override
-            public void onAnimationStart(Animator animation) {
-                mIsAnimating = true;
-            }
+        if (!ScaleType.MATRIX.equals(getScaleType())) {
+            setScaleType(ScaleType.MATRIX);
+        }
+        mCurrentScale = targetScale;
+        mCurrentTranslation.set(translation.x, translation.y);
+        resetHasScaled();
+        updateMatrix();
+        setImageMatrix(mMatrix);
+    }
 
-            @Override
-            public void onAnimationEnd(Animator animation) {
-                mIsAnimating = false;
-                completeScalingReset();
-            }
-        });
+    /**
+     * Enables zooming in with a double tap, or back out if already zoomed. Enabled by default.
+     */
+    public void setDoubleTapZoomEnabled(boolean enabled) {
+        mIsDoubleTapZoomEnabled = enabled;
+    }
+
+    /**
+     * Returns how many matrix updates and commits were made so far, and in how many frames.
+     * Compare {@link MatrixCommitStats#getCommitsPerFrame()} with and without
+     * {@link #setCoalesceMatrixUpdates(boolean)} to see the effect of coalescing. Without
+     * coalescing, frames are only counted while {@link #setPerformanceStatsEnabled(boolean) stats}
+     * are enabled.
+     */
+    public MatrixCommitStats getMatrixCommitStats() {
+        return new MatrixCommitStats(mMatrixUpdateCount, mMatrixCommitCount, mMatrixUpdateFrameCount);
+    }
+
+    /**
+     * Enables folding all pan and scale updates received within a frame into a single matrix
+     * commit at the next animation frame, instead of committing the matrix for every touch event.
+     * This is off by default.
+     */
+    public void setCoalesceMatrixUpdates(boolean coalesce) {
+        if (mIsCoalescingMatrixUpdates && !coalesce && mIsMatrixFrameCallbackPending) {
+            // Don't lose the update that is still waiting for the next frame
+            setImageMatrix(mMatrix);
+        }
+        mIsCoalescingMatrixUpdates = coalesce;
+    }
+
+    /**
+     * Returns the gesture performance numbers collected since stats were enabled or last reset.
+     *
+     * @return the current stats, or {@code null} if stats are disabled
+     * @see #setPerformanceStatsEnabled(boolean)
+     */
+    @Nullable
+    public PerformanceStats getPerformanceStats() {
+        return mPerformanceMonitor != null ?
+                mPerformanceMonitor.snapshot(getMatrixCommitStats(), getTileCacheStats()) : null;
+    }
+
+    /**
+     * Clears the numbers collected so far, if stats are enabled.
+     */
+    public void resetPerformanceStats() {
+        if (mPerformanceMonitor != null) {
+            mPerformanceMonitor.reset();
+        }
+    }
 
-        animator.setDuration(RESET_ANIMATION_DURATION);
-        animator.start();
+    /**
+     * Enables collecting touch and scale handling times, animation frame times and dropped frames
+     * while pinching, flinging or animating. Disabled by default, in which case collecting costs
+     * nothing beyond a null check.
+     *
+     * @see #getPerformanceStats()
+     */
+    public void setPerformanceStatsEnabled(boolean enabled) {
+        if (enabled == (mPerformanceMonitor != null)) {
+            return;
+        }
+
+        if (enabled) {
+            mPerformanceMonitor = new PerformanceMonitor(getContext());
+            mPerformanceMonitor.setInMotion(mIsInMotion);
+        } else {
+            mPerformanceMonitor.setInMotion(false);
+            mPerformanceMonitor = null;
+        }
     }
 
     public void setMaximumScale(float scale) {
@@ -328,6 +1619,79 @@ public class ScalableImageView extends AppCompatImageView {
         mIsScalable = scalable;
     }
 
+    /**
+     * Reports whether the image can pan further in the given direction, so that parents such as a
+     * {@code ViewPager} leave a zoomed image alone until it reaches its edge.
+     */
+    @Override
+    public boolean canScrollHorizontally(int direction) {
+        if (!mIsScalable || direction == 0 || getDrawable() == null) {
+            return super.canScrollHorizontally(direction);
+        }
+        mScrollProbe.set(direction < 0 ? 1f : -1f, NO_TRANSLATION);
+        return Float.compare(getTranslationInBounds(mScrollProbe, mMatrix).x, NO_TRANSLATION) != 0;
+    }
+
+    @Override
+    public boolean canScrollVertically(int direction) {
+        if (!mIsScalable || direction == 0 || getDrawable() == null) {
+            return super.canScrollVertically(direction);
+        }
+        mScrollProbe.set(NO_TRANSLATION, direction < 0 ? 1f : -1f);
+        return Float.compare(getTranslationInBounds(mScrollProbe, mMatrix).y, NO_TRANSLATION) != 0;
+    }
+
+    @Override
+    public void setNestedScrollingEnabled(boolean enabled) {
+        // Called by the View constructor on newer platforms, before the helper exists
+        //noinspection ConstantConditions
+        if (mNestedScrollingHelper != null) {
+            mNestedScrollingHelper.setNestedScrollingEnabled(enabled);
+        }
+    }
+
+    @Override
+    public boolean isNestedScrollingEnabled() {
+        return mNestedScrollingHelper.isNestedScrollingEnabled();
+    }
+
+    @Override
+    public boolean startNestedScroll(int axes) {
+        return mNestedScrollingHelper.startNestedScroll(axes);
+    }
+
+    @Override
+    public void stopNestedScroll() {
+        mNestedScrollingHelper.stopNestedScroll();
+    }
+
+    @Override
+    public boolean hasNestedScrollingParent() {
+        return mNestedScrollingHelper.hasNestedScrollingParent();
+    }
+
+    @Override
+    public boolean dispatchNestedScroll(int dxConsumed, int dyConsumed, int dxUnconsumed, int dyUnconsumed,
+                                        @Nullable int[] offsetInWindow) {
+        return mNestedScrollingHelper.dispatchNestedScroll(dxConsumed, dyConsumed, dxUnconsumed, dyUnconsumed,
+                offsetInWindow);
+    }
+
+    @Override
+    public boolean dispatchNestedPreScroll(int dx, int dy, @Nullable int[] consumed, @Nullable int[] offsetInWindow) {
+        return mNestedScrollingHelper.dispatchNestedPreScroll(dx, dy, consumed, offsetInWindow);
+    }
+
+    @Override
+    public boolean dispatchNestedFling(float velocityX, float velocityY, boolean consumed) {
+        return mNestedScrollingHelper.dispatchNestedFling(velocityX, velocityY, consumed);
+    }
+
+    @Override
+    public boolean dispatchNestedPreFling(float velocityX, float velocityY) {
+        return mNestedScrollingHelper.dispatchNestedPreFling(velocityX, velocityY);
+    }
+
     private ScaleGestureDetector.SimpleOnScaleGestureListener mScaleListener =
             new ScaleGestureDetector.SimpleOnScaleGestureListener() {
                 PointF focus = new PointF();
@@ -335,15 +1699,40 @@ public class ScalableImageView extends AppCompatImageView {
 
                 @Override
                 public boolean onScaleBegin(ScaleGestureDetector detector) {
+                    mIsScaling = true;
+                    mTransformAnimation.stop();
                     lastFocus.x = detector.getFocusX();
                     lastFocus.y = detector.getFocusY();
                     mCurrentScaleMax = mCurrentScale;
                     mCurrentScaleMin = mCurrentScale;
+                    mFlingRunnable.stop();
+                    mPanVelocityX = 0f;
+                    mPanVelocityY = 0f;
+                    updateMotionState();
                     return true;
                 }
 
+                @Override
+                public void onScaleEnd(ScaleGestureDetector detector) {
+                    mIsScaling = false;
+                    mScaleVelocity = 0f;
+                    updateMotionState();
+                }
+
                 @Override
                 public boolean onScale(ScaleGestureDetector detector) {
+                    final PerformanceMonitor monitor = mPerformanceMonitor;
+                    if (monitor == null) {
+                        return handleScale(detector);
+                    }
+
+                    long start = System.nanoTime();
+                    boolean handled = handleScale(detector);
+                    monitor.recordScaleEvent(System.nanoTime() - start);
+                    return handled;
+                }
+
+                private boolean handleScale(ScaleGestureDetector detector) {
                     if (mIsAnimating) {
                         return true;
                     }
@@ -352,6 +1741,11 @@ public class ScalableImageView extends AppCompatImageView {
                     focus.y = detector.getFocusY();
 
                     float scale = detector.getScaleFactor();
+                    long timeDelta = detector.getTimeDelta();
+                    if (timeDelta > 0 && scale > 0f) {
+                        float velocity = (float) Math.log(scale) * 1000f / timeDelta;
+                        mScaleVelocity += SCALE_VELOCITY_SMOOTHING * (velocity - mScaleVelocity);
+                    }
                     mAttemptedScaleMax = Math.max(scale, mAttemptedScaleMax);
                     mAttemptedScaleMin = Math.min(scale, mAttemptedScaleMin);
                     mCurrentScale = calculateNewScale(mCurrentScale, scale);
@@ -364,30 +1758,18 @@ public class ScalableImageView extends AppCompatImageView {
                             setScaleType(ScaleType.MATRIX);
                         }
 
-                        // For now we will always begin with a matrix that simulates a "fitCenter"
-                        // type of behavior; we can then apply cumulative transformations to this
-                        // matrix in order to have greater control over the current values of
-                        // scales, translations, etc.
-                        mMatrix.set(getFitCenterMatrix(ScalableImageView.this));
-
-                        // Scale the matrix to the current scale around the view center
-                        mMatrix.postScale(
-                                mCurrentScale,
-                                mCurrentScale,
-                                getX() + getWidth() * 0.5f,
-                                getY() + getHeight() * 0.5f);
-
-                        // Re-apply any translations from panning and also translate according to
-                        // to any lateral motion while scaling.
+                        // We always begin with the cached matrix that simulates a "fitCenter"
+                        // type of behavior; the current scale and translation are then applied on
+                        // top of it in order to have greater control over the current values of
+                        // scales, translations, etc. Also translate according to any lateral
+                        // motion while scaling.
                         mCurrentTranslation.x += focus.x - lastFocus.x;
                         mCurrentTranslation.y += focus.y - lastFocus.y;
-                        mCurrentTranslation = getTranslationInBounds(mCurrentTranslation,
-                                ScalableImageView.this, mMatrix);
-                        mMatrix.postTranslate(mCurrentTranslation.x, mCurrentTranslation.y);
+                        updateMatrix();
 
                         lastFocus.x = focus.x;
                         lastFocus.y = focus.y;
-                        setImageMatrix(mMatrix);
+                        requestMatrixCommit();
                         return true;
                     } else {
                         resetScaling(hasScaled());
@@ -396,40 +1778,228 @@ public class ScalableImageView extends AppCompatImageView {
                 }
             };
 
-    //--------------------------------------------------------------------------------------------//
-    //------------------------------------- STATIC FUNCTIONS -------------------------------------//
-    //--------------------------------------------------------------------------------------------//
+    private GestureDetector.SimpleOnGestureListener mGestureListener =
+            new GestureDetector.SimpleOnGestureListener() {
+                @Override
+                public boolean onSingleTapConfirmed(MotionEvent e) {
+                    return dispatchMarkerTap(e.getX(), e.getY());
+                }
+
+                @Override
+                public boolean onDoubleTap(MotionEvent e) {
+                    if (!mIsDoubleTapZoomEnabled) {
+                        return false;
+                    }
+
+                    if (isScaled()) {
+                        resetScaling(true);
+                    } else {
+                        zoomTo(Math.min(DOUBLE_TAP_SCALE, mMaxScale), e.getX(), e.getY());
+                    }
+                    return true;
+                }
+            };
 
     /**
-     * Calculates the translation factor necessary to center the view's drawable for the given
-     * scale.
-     *
-     * @param imageView the view with a drawable to be centered
-     * @param scale     a scale factor that would be applied to the drawable before centering
-     * @return the translation factor
+     * What is read from an {@link ImageSource} in the background before it can be shown.
      */
-    private static PointF getCenteringTranslationForScale(@Nullable ImageView imageView, float scale) {
-        PointF point = new PointF();
-        if (imageView == null || imageView.getDrawable() == null) {
-            return point;
+    private static final class LoadedSource {
+
+        final ImageHeader header;
+        final TileDecoder decoder;
+        // The key to write a tile pyramid to, if the source gets one and it isn't cached yet
+        @Nullable
+        final String pyramidKey;
+
+        LoadedSource(ImageHeader header, TileDecoder decoder, @Nullable String pyramidKey) {
+            this.header = header;
+            this.decoder = decoder;
+            this.pyramidKey = pyramidKey;
         }
+    }
 
-        Drawable drawable = imageView.getDrawable();
-        int drawableWidth = drawable.getIntrinsicWidth();
-        int drawableHeight = drawable.getIntrinsicHeight();
-        int viewWidth = getViewWidthMinusPadding(imageView);
-        int viewHeight = getViewHeightMinusPadding(imageView);
-        if (drawableWidth <= 0 || drawableHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
-            return point;
+    /**
+     * Animates from the current (scale, translation) pair to another one. There is a single
+     * instance per view that is reused for every reset and zoom. Every frame writes the animated
+     * values back to {@link #mCurrentScale} and {@link #mCurrentTranslation}, so stopping it part
+     * way leaves the view in a consistent state that a new gesture can continue from without a
+     * jump.
+     */
+    private final class TransformAnimation implements Runnable {
+
+        private final Interpolator mInterpolator = new AccelerateDecelerateInterpolator();
+        private float mStartScale;
+        private float mStartTranslationX;
+        private float mStartTranslationY;
+        private float mEndScale;
+        private float mEndTranslationX;
+        private float mEndTranslationY;
+        private long mStartTime;
+
+        void start(float scale, float translationX, float translationY) {
+            stop();
+
+            mStartScale = mCurrentScale;
+            mStartTranslationX = mCurrentTranslation.x;
+            mStartTranslationY = mCurrentTranslation.y;
+            mEndScale = scale;
+            mEndTranslationX = translationX;
+            mEndTranslationY = translationY;
+            mStartTime = AnimationUtils.currentAnimationTimeMillis();
+
+            if (!ScaleType.MATRIX.equals(getScaleType())) {
+                setScaleType(ScaleType.MATRIX);
+            }
+            mIsAnimating = true;
+            updateMotionState();
+            postOnAnimation(this);
         }
 
-        // Translate drawable to center
-        float xScaled = drawableWidth * scale;
-        float yScaled = drawableHeight * scale;
-        float xTranslation = (viewWidth - xScaled) / 2f + 0.5f;
-        float yTranslation = (viewHeight - yScaled) / 2f + 0.5f;
-        point.set(xTranslation, yTranslation);
-        return point;
+        void stop() {
+            if (mIsAnimating) {
+                mIsAnimating = false;
+                removeCallbacks(this);
+                resetHasScaled();
+                updateMotionState();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!mIsAnimating) {
+                return;
+            }
+
+            final PerformanceMonitor monitor = mPerformanceMonitor;
+            long start = monitor != null ? System.nanoTime() : 0L;
+            step();
+            if (monitor != null) {
+                monitor.recordAnimationFrame(System.nanoTime() - start);
+            }
+        }
+
+        private void step() {
+            float elapsed = AnimationUtils.currentAnimationTimeMillis() - mStartTime;
+            float fraction = Math.min(1f, elapsed / RESET_ANIMATION_DURATION);
+            float value = mInterpolator.getInterpolation(fraction);
+
+            mCurrentScale = mStartScale + (mEndScale - mStartScale) * value;
+            mCurrentTranslation.set(
+                    mStartTranslationX + (mEndTranslationX - mStartTranslationX) * value,
+                    mStartTranslationY + (mEndTranslationY - mStartTranslationY) * value);
+
+            mMatrix.set(getBaseMatrix());
+            mMatrix.postScale(
+                    mCurrentScale,
+                    mCurrentScale,
+                    getX() + getWidth() * 0.5f,
+                    getY() + getHeight() * 0.5f);
+            mMatrix.postTranslate(mCurrentTranslation.x, mCurrentTranslation.y);
+            setImageMatrix(mMatrix);
+
+            if (fraction < 1f) {
+                postOnAnimation(this);
+                return;
+            }
+
+            mIsAnimating = false;
+            if (Float.compare(mEndScale, NO_SCALE) == 0) {
+                completeScalingReset();
+            }
+            resetHasScaled();
+            updateMotionState();
+        }
+    }
+
+    /**
+     * Keeps panning after the finger is lifted with a decelerating velocity. The scroller and this
+     * runnable are allocated once and reused for every fling; each animation frame applies exactly
+     * one clamped translation and matrix update.
+     */
+    private final class FlingRunnable implements Runnable {
+
+        private final OverScroller mScroller;
+        private float mDirectionX;
+        private float mDirectionY;
+        private int mLastX;
+        private int mLastY;
+
+        FlingRunnable(Context context) {
+            mScroller = new OverScroller(context);
+        }
+
+        void start(float velocityX, float velocityY) {
+            stop();
+
+            float velocity = PointF.length(velocityX, velocityY);
+            mDirectionX = velocityX / velocity;
+            mDirectionY = velocityY / velocity;
+            mLastX = 0;
+            mLastY = 0;
+            mScroller.fling(0, 0, (int) velocityX, (int) velocityY,
+                    Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            updateMotionState();
+            postOnAnimation(this);
+        }
+
+        void stop() {
+            if (!mScroller.isFinished()) {
+                mScroller.forceFinished(true);
+                removeCallbacks(this);
+                clearVelocity();
+                updateMotionState();
+            }
+        }
+
+        boolean isRunning() {
+            return !mScroller.isFinished();
+        }
+
+        @Override
+        public void run() {
+            final PerformanceMonitor monitor = mPerformanceMonitor;
+            long start = monitor != null ? System.nanoTime() : 0L;
+            step();
+            if (monitor != null) {
+                monitor.recordAnimationFrame(System.nanoTime() - start);
+            }
+        }
+
+        private void step() {
+            if (mScroller.isFinished() || !mScroller.computeScrollOffset()) {
+                clearVelocity();
+                updateMotionState();
+                return;
+            }
+
+            int x = mScroller.getCurrX();
+            int y = mScroller.getCurrY();
+            PointF diff = mTranslationDelta;
+            diff.set(x - mLastX, y - mLastY);
+            mLastX = x;
+            mLastY = y;
+
+            boolean wasMoving = Float.compare(diff.length(), NO_TRANSLATION) != 0;
+            getTranslationInBounds(diff, mMatrix);
+            if (wasMoving && Float.compare(diff.length(), NO_TRANSLATION) == 0) {
+                // Both axes hit an edge, there is nowhere left to fling to
+                mScroller.forceFinished(true);
+                clearVelocity();
+                updateMotionState();
+                return;
+            }
+
+            // Keep the prefetch prediction in line with the fling
+            float velocity = mScroller.getCurrVelocity();
+            mPanVelocityX = mDirectionX * velocity;
+            mPanVelocityY = mDirectionY * velocity;
+
+            mCurrentTranslation.x += diff.x;
+            mCurrentTranslation.y += diff.y;
+            mMatrix.postTranslate(diff.x, diff.y);
+            setImageMatrix(mMatrix);
+            postOnAnimation(this);
+        }
     }
 
     /**
@@ -438,34 +2008,119 @@ public class ScalableImageView extends AppCompatImageView {
      * completely fills the corresponding view dimension while the other dimension maintains the
      * correct aspect ratio while remaining inside the view.
      *
-     * @param imageView the view with a drawable to be centered
-     * @return the matrix that should be applied
+     * @param matrix receives the matrix that should be applied
+     * @return the matrix that should be applied, i.e. {@code matrix}
      */
-    private static Matrix getFitCenterMatrix(ImageView imageView) {
-        Matrix matrix = new Matrix();
-
+    private Matrix getFitCenterMatrix(Matrix matrix) {
         // Amount to scale drawable to match each direction
-        float fitCenterScaleFactor = getFitCenterScaleFactor(imageView);
+        float fitCenterScaleFactor = getFitCenterScaleFactor(this);
         matrix.setScale(fitCenterScaleFactor, fitCenterScaleFactor);
 
         // Translate drawable to center
-        PointF translationVector = getCenteringTranslationForScale(imageView, fitCenterScaleFactor);
+        PointF translationVector = getCenteringTranslationForScale(this, fitCenterScaleFactor,
+                mCenteringTranslation);
         matrix.postTranslate(translationVector.x, translationVector.y);
 
         return matrix;
     }
 
     /**
-     * Calculates the scale factor needed to scale a drawable to fill one view dimension while
-     * the other drawable dimension maintains the  correct aspect ratio while remaining inside the
-     * view.
+     * Given a proposed translation, this will check to ensure that (a) it will not translate the
+     * drawable if it has not scaled to larger than the view dimensions and (b) it will not
+     * translate the drawable edges back inside the view bounds if it has scaled larger than the
+     * view dimensions.
+     *
+     * <p>
+     * The translation is corrected in place so that this can run on every touch event without
+     * allocating.
+     *
+     * @param translation the proposed translation, updated to the corrected translation
+     * @param matrix      the matrix that is currently applied to the drawable
+     * @return the proposed translation if satisfying all criteria, else a corrected version that
+     * satisfies them.
+     */
+    private PointF getTranslationInBounds(PointF translation, @Nullable Matrix matrix) {
+        Drawable drawable = getDrawable();
+        if (drawable == null || matrix == null) {
+            return translation;
+        }
+
+        drawable.copyBounds(mTempDrawableRect);
+        RectF drawableBounds = mTempDrawableBounds;
+        drawableBounds.set(mTempDrawableRect);
+        RectF viewBounds = mTempViewBounds;
+        viewBounds.set(getLeft(), getTop(), getRight(), getBottom());
+
+        // Update the drawable bounds according to the current matrix
+        matrix.mapRect(drawableBounds);
+
+        translation.x = ViewportTransform.getTranslationInBounds(translation.x,
+                drawableBounds.left, drawableBounds.right, viewBounds.left, viewBounds.right);
+        translation.y = ViewportTransform.getTranslationInBounds(translation.y,
+                drawableBounds.top, drawableBounds.bottom, viewBounds.top, viewBounds.bottom);
+        return translation;
+    }
+
+    /**
+     * Reports a pan to a nested scrolling parent so that it can scroll by what the image didn't
+     * use. Nested scrolling works in whole pixels of scroll distance, which is opposite to the
+     * pointer movement, so the fractions are carried over to the next pan.
+     *
+     * @return {@code true} if the parent was dispatched to
+     */
+    private boolean dispatchNestedPan(float consumedX, float consumedY, float unconsumedX, float unconsumedY) {
+        mNestedScrollRemainder.offset(-unconsumedX, -unconsumedY);
+        int scrollX = (int) mNestedScrollRemainder.x;
+        int scrollY = (int) mNestedScrollRemainder.y;
+        mNestedScrollRemainder.offset(-scrollX, -scrollY);
+        if (!dispatchNestedScroll(-Math.round(consumedX), -Math.round(consumedY), scrollX, scrollY,
+                mNestedScrollOffset)) {
+            return false;
+        }
+
+        // The parent may have moved the view underneath the pointer
+        mNestedOffsetX += mNestedScrollOffset[0];
+        mNestedOffsetY += mNestedScrollOffset[1];
+        mInitialCoordinates.offset(-mNestedScrollOffset[0], -mNestedScrollOffset[1]);
+        return true;
+    }
+
+    /**
+     * Flings the image if it is scaled, unless a nested scrolling parent takes the fling first. The
+     * parent also gets to fling when the image can't pan in the direction of the fling.
+     */
+    private void fling(float velocityX, float velocityY, boolean canFlingImage) {
+        if (dispatchNestedPreFling(-velocityX, -velocityY)) {
+            return;
+        }
+        boolean isConsumed = canFlingImage &&
+                ((Float.compare(velocityX, 0f) != 0 && canScrollHorizontally(velocityX > 0 ? -1 : 1)) ||
+                        (Float.compare(velocityY, 0f) != 0 && canScrollVertically(velocityY > 0 ? -1 : 1)));
+        dispatchNestedFling(-velocityX, -velocityY, isConsumed);
+        if (canFlingImage) {
+            mFlingRunnable.start(velocityX, velocityY);
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------//
+    //------------------------------------- STATIC FUNCTIONS -------------------------------------//
+    //--------------------------------------------------------------------------------------------//
+
+    /**
+     * Calculates the translation factor necessary to center the view's drawable for the given
+     * scale.
      *
      * @param imageView the view with a drawable to be centered
-     * @return the scale factor
+     * @param scale     a scale factor that would be applied to the drawable before centering
+     * @param point     receives the translation factor
+     * @return the translation factor, i.e. {@code point}
      */
-    private static float getFitCenterScaleFactor(@Nullable ImageView imageView) {
+    private static PointF getCenteringTranslationForScale(@Nullable ImageView imageView,
+                                                          float scale,
+                                                          PointF point) {
+        point.set(NO_TRANSLATION, NO_TRANSLATION);
         if (imageView == null || imageView.getDrawable() == null) {
-            return NO_SCALE;
+            return point;
         }
 
         Drawable drawable = imageView.getDrawable();
@@ -474,85 +2129,42 @@ public class ScalableImageView extends AppCompatImageView {
         int viewWidth = getViewWidthMinusPadding(imageView);
         int viewHeight = getViewHeightMinusPadding(imageView);
         if (drawableWidth <= 0 || drawableHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
-            return NO_SCALE;
+            return point;
         }
 
-        float xScaling = ((float) viewWidth) / drawableWidth;
-        float yScaling = ((float) viewHeight) / drawableHeight;
-
-        // Always just pick the smallest dimension
-        return Math.min(xScaling, yScaling);
+        // Translate drawable to center
+        point.set(ViewportTransform.getCenteringTranslation(drawableWidth, viewWidth, scale),
+                ViewportTransform.getCenteringTranslation(drawableHeight, viewHeight, scale));
+        return point;
     }
 
     /**
-     * Given a proposed translation, this will check to ensure that (a) it will not translate the
-     * drawable if it has not scaled to larger than the view dimensions and (b) it will not
-     * translate the drawable edges back inside the view bounds if it has scaled larger than the
-     * view dimensions.
+     * Calculates the scale factor needed to scale a drawable to fill one view dimension while
+     * the other drawable dimension maintains the  correct aspect ratio while remaining inside the
+     * view.
      *
-     * @param translation the proposed translation
-     * @param imageView   the view containing the drawable to translate
-     * @param matrix      the matrix that is currently applied to the drawable
-     * @return the proposed translation if satisfying all criteria, else a corrected version that
-     * satisfies them.
+     * @param imageView the view with a drawable to be centered
+     * @return the scale factor
      */
-    private static PointF getTranslationInBounds(PointF translation,
-                                                 @Nullable ImageView imageView,
-                                                 @Nullable Matrix matrix) {
-        if (imageView == null || imageView.getDrawable() == null || matrix == null) {
-            return translation;
-        }
-
-        RectF drawableBounds = new RectF(imageView.getDrawable().copyBounds());
-        RectF viewBounds = new RectF(
-                imageView.getLeft(),
-                imageView.getTop(),
-                imageView.getRight(),
-                imageView.getBottom());
-
-        // Update the drawable bounds according to the current matrix
-        matrix.mapRect(drawableBounds);
-
-        PointF correctedTranslation = new PointF();
-        if (drawableBounds.width() < viewBounds.width()) {
-            // Don't allow additional translations if still within the view bounds
-            correctedTranslation.x = 0;
-        } else {
-            // Don't translate more than the current spacing between the drawable and view edges
-            if (translation.x > 0) {
-                float leftGap = viewBounds.left - drawableBounds.left;
-                correctedTranslation.x = translation.x < leftGap ? translation.x : leftGap;
-            } else {
-                float rightGap = viewBounds.right - drawableBounds.right;
-                correctedTranslation.x = translation.x > rightGap ? translation.x : rightGap;
-            }
-        }
-
-        if (drawableBounds.height() < viewBounds.height()) {
-            // Don't allow additional translations if still within the view bounds
-            correctedTranslation.y = 0;
-        } else {
-            // Don't translate more than the current spacing between the drawable and view edges
-            if (translation.y > 0) {
-                float topGap = viewBounds.top - drawableBounds.top;
-                correctedTranslation.y = translation.y < topGap ? translation.y : topGap;
-            } else {
-                float bottomGap = viewBounds.bottom - drawableBounds.bottom;
-                correctedTranslation.y = translation.y > bottomGap ? translation.y : bottomGap;
-            }
+    private static float getFitCenterScaleFactor(@Nullable ImageView imageView) {
+        if (imageView == null || imageView.getDrawable() == null) {
+            return NO_SCALE;
         }
 
-        return correctedTranslation;
+        Drawable drawable = imageView.getDrawable();
+        return ViewportTransform.getFitCenterScale(drawable.getIntrinsicWidth(),
+                drawable.getIntrinsicHeight(), getViewWidthMinusPadding(imageView),
+                getViewHeightMinusPadding(imageView));
     }
 
-    private static int getViewWidthMinusPadding(@Nullable View view) {
+    static int getViewWidthMinusPadding(@Nullable View view) {
         if (view == null) {
             return 0;
         }
         return view.getWidth() - view.getPaddingLeft() - view.getPaddingRight();
     }
 
-    private static int getViewHeightMinusPadding(@Nullable View view) {
+    static int getViewHeightMinusPadding(@Nullable View view) {
         if (view == null) {
             return 0;
         }
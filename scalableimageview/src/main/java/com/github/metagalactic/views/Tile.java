@@ -0,0 +1,38 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+
+/**
+ * A single cell of a {@link TiledImageDrawable} pyramid level. The region is expressed in full
+ * resolution image coordinates and is decoded with the sample size of its level.
+ */
+final class Tile {
+
+    final int level;
+    final int sampleSize;
+    final int column;
+    final int row;
+    final Rect imageRect;
+
+    // Only touched on the main thread. Mirrors the entry in the TileCache so that drawing doesn't
+    // count as a cache access, and is cleared once the tile is evicted.
+    @Nullable
+    Bitmap bitmap;
+    @Nullable
+    TileDecodeScheduler.Task decodeTask;
+    // Set while the tile was decoded ahead of time and hasn't been visible yet
+    boolean isPrefetched;
+    // Whether the tile was visible at the last viewport change, so that the cache is only accessed
+    // when it comes into view
+    boolean isVisible;
+
+    Tile(int level, int sampleSize, int column, int row, Rect imageRect) {
+        this.level = level;
+        this.sampleSize = sampleSize;
+        this.column = column;
+        this.row = row;
+        this.imageRect = imageRect;
+    }
+}
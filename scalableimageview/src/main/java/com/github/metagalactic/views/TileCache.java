@@ -0,0 +1,89 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * An LRU cache of decoded tiles bounded by the byte count of the cached bitmaps. Evicted bitmaps
+ * are handed to a {@link BitmapPool} so that the next decode can reuse their memory.
+ * <p>
+ * The cache must only be modified on the main thread. The bitmap pool may be used from any
+ * thread.
+ */
+@ParametersAreNonnullByDefault
+final class TileCache extends LruCache<Tile, Bitmap> {
+
+    private final BitmapPool mBitmapPool;
+
+    // Counted per tile coming into view, so kept apart from the lookups that only refresh recency
+    private int mHitCount;
+    private int mMissCount;
+    private int mPrefetchCount;
+    private int mPrefetchHitCount;
+
+    TileCache(int maxSizeBytes) {
+        super(maxSizeBytes);
+        // Keep enough evicted bitmaps around to refill a screen worth of tiles
+        mBitmapPool = new BitmapPool(maxSizeBytes / 4);
+    }
+
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    TileCacheStats getStats() {
+        return new TileCacheStats(mHitCount, mMissCount, evictionCount(), size(), maxSize(),
+                mPrefetchCount, mPrefetchHitCount);
+    }
+
+    /**
+     * Marks a visible tile as used most recently, so that it is evicted after any tile that isn't
+     * visible. Doesn't count as a hit or miss.
+     */
+    void touch(Tile tile) {
+        get(tile);
+    }
+
+    /**
+     * Records whether a tile coming into view was already cached.
+     */
+    void recordLookup(boolean isHit) {
+        if (isHit) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Records that a tile is decoded ahead of time because the viewport is predicted to reach it.
+     */
+    void recordPrefetch() {
+        mPrefetchCount++;
+    }
+
+    /**
+     * Records that a prefetched tile was already decoded when it became visible.
+     */
+    void recordPrefetchHit() {
+        mPrefetchHitCount++;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Tile tile, Bitmap oldBitmap, Bitmap newBitmap) {
+        if (tile.bitmap == oldBitmap) {
+            tile.bitmap = null;
+            tile.isPrefetched = false;
+        }
+        if (oldBitmap != newBitmap) {
+            mBitmapPool.put(oldBitmap);
+        }
+    }
+
+    @Override
+    protected int sizeOf(Tile tile, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.metagalactic.views;
+
+/**
+ * A snapshot of the counters of the tile cache used by {@link ScalableImageView} in tiled mode.
+ */
+public final class TileCacheStats {
+
+    private final int mHitCount;
+    private final int mMissCount;
+    private final int mEvictionCount;
+    private final int mSizeBytes;
+    private final int mMaxSizeBytes;
+    private final int mPrefetchCount;
+    private final int mPrefetchHitCount;
+
+    TileCacheStats(int hitCount, int missCount, int evictionCount, int sizeBytes, int maxSizeBytes,
+                   int prefetchCount, int prefetchHitCount) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mEvictionCount = evictionCount;
+        mSizeBytes = sizeBytes;
+        mMaxSizeBytes = maxSizeBytes;
+        mPrefetchCount = prefetchCount;
+        mPrefetchHitCount = prefetchHitCount;
+    }
+
+    /**
+     * @return the number of times a tile came into view already decoded
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times a tile came into view without being decoded yet
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of tiles evicted to stay within the memory budget
+     */
+    public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the byte count of all currently cached tiles
+     */
+    public int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * @return the memory budget of the cache in bytes
+     */
+    public int getMaxSizeBytes() {
+        return mMaxSizeBytes;
+    }
+
+    /**
+     * @return the number of tiles decoded ahead of time because the pan or pinch velocity predicted
+     * that the viewport would reach them
+     */
+    public int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    /**
+     * @return the number of prefetched tiles that were ready by the time they became visible
+     */
+    public int getPrefetchHitCount() {
+        return mPrefetchHitCount;
+    }
+
+    /**
+     * @return the fraction of prefetched tiles that were ready by the time they became visible
+     */
+    public float getPrefetchHitRate() {
+        return mPrefetchCount > 0 ? (float) mPrefetchHitCount / mPrefetchCount : 0f;
+    }
+
+    @Override
+    public String toString() {
+        return "TileCacheStats{" +
+                "hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount +
+                ", size=" + mSizeBytes +
+                "/" + mMaxSizeBytes +
+                ", prefetches=" + mPrefetchCount +
+                ", prefetchHits=" + mPrefetchHitCount +
+                '}';
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.metagalactic.views;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Runs region decodes for all {@link ScalableImageView}s off the UI thread. Pending tasks are
+ * ordered by priority, lowest value first, so that the tiles closest to the center of the viewport
+ * are decoded before the ones at its edges. Tasks that haven't started yet can be cancelled or
+ * re-prioritized when the viewport moves.
+ * <p>
+ * While any view is pinching or animating, the scheduler is paused so that the workers don't
+ * compete with the UI and render threads for the CPU.
+ */
+@ParametersAreNonnullByDefault
+final class TileDecodeScheduler {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Leave one core for the UI and render threads, but don't hog big devices either
+     */
+    private static final int WORKER_COUNT = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static TileDecodeScheduler sInstance;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Object mPauseLock = new Object();
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guarded by mPauseLock
+    private int mPauseCount;
+
+    private TileDecodeScheduler() {
+        mExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new DecodeThreadFactory()) {
+
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                super.beforeExecute(thread, runnable);
+                awaitResume(thread);
+            }
+        };
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static synchronized TileDecodeScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new TileDecodeScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues a task with the given priority. Lower values run first.
+     */
+    void submit(Task task, float priority) {
+        task.mPriority = priority;
+        task.mSequence = mSequence.incrementAndGet();
+        task.mIsCancelled = false;
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Changes the priority of a task that hasn't started yet. Does nothing if it already started.
+     */
+    void updatePriority(Task task, float priority) {
+        if (Float.compare(task.mPriority, priority) == 0) {
+            return;
+        }
+        if (mExecutor.remove(task)) {
+            task.mPriority = priority;
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Cancels a task. A task that already started will still complete, but one that is still queued
+     * is removed and never runs.
+     */
+    void cancel(Task task) {
+        task.mIsCancelled = true;
+        mExecutor.remove(task);
+    }
+
+    /**
+     * Holds back tasks that haven't started yet until {@link #resume()} is called as often as this.
+     * Tasks that are already running complete.
+     */
+    void pause() {
+        synchronized (mPauseLock) {
+            mPauseCount++;
+        }
+    }
+
+    /**
+     * Undoes one {@link #pause()}.
+     */
+    void resume() {
+        synchronized (mPauseLock) {
+            if (mPauseCount > 0 && --mPauseCount == 0) {
+                mPauseLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitResume(Thread thread) {
+        synchronized (mPauseLock) {
+            try {
+                while (mPauseCount > 0) {
+                    mPauseLock.wait();
+                }
+            } catch (InterruptedException e) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * A unit of work for the scheduler. Tasks are not reusable while queued.
+     */
+    abstract static class Task implements Runnable, Comparable<Task> {
+
+        private volatile boolean mIsCancelled;
+        private float mPriority;
+        private long mSequence;
+
+        @Override
+        public final void run() {
+            if (!mIsCancelled) {
+                execute();
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Task other) {
+            int result = Float.compare(mPriority, other.mPriority);
+            if (result == 0) {
+                result = mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+            }
+            return result;
+        }
+
+        boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Runs on a worker thread.
+         */
+        abstract void execute();
+    }
+
+    private static final class DecodeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ScalableImageView-decode-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+/**
+ * The source of the pixels of a {@link TiledImageDrawable}. All decode methods run on a worker
+ * thread of the {@link TileDecodeScheduler} and must be safe to call concurrently.
+ */
+interface TileDecoder {
+
+    /**
+     * @return the full resolution width of the image
+     */
+    int getWidth();
+
+    /**
+     * @return the full resolution height of the image
+     */
+    int getHeight();
+
+    /**
+     * Decodes the whole image at the given sample size.
+     *
+     * @return the bitmap, or {@code null} if decoding failed
+     */
+    @Nullable
+    Bitmap decodeBaseLayer(int sampleSize);
+
+    /**
+     * Decodes a single tile at the sample size of its level.
+     *
+     * @param tile the tile to decode
+     * @param pool a pool to take a bitmap to decode into from, or {@code null} to always allocate
+     * @return the bitmap, or {@code null} if decoding failed
+     */
+    @Nullable
+    Bitmap decodeTile(Tile tile, @Nullable BitmapPool pool);
+
+    /**
+     * Releases the decoder. Decodes that are still running may fail afterwards.
+     */
+    void recycle();
+}
@@ -0,0 +1,174 @@
+package com.github.metagalactic.views;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A size-bounded LRU of {@link TilePyramidFormat tile pyramid} files in the app's cache directory.
+ * Pyramids are keyed by the source file path, size and modification time, so a changed source
+ * never reuses a stale pyramid. The last modification time of a pyramid file doubles as its last
+ * access time.
+ * <p>
+ * May be used from any thread.
+ */
+@ParametersAreNonnullByDefault
+final class TilePyramidCache {
+
+    private static final String TAG = TilePyramidCache.class.getSimpleName();
+
+    private static final String DIRECTORY_NAME = "scalableimageview-pyramids";
+    private static final String PYRAMID_SUFFIX = ".pyramid";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long MAX_SIZE_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * A single pyramid may take up at most this share of the cache, so that committing it never
+     * evicts all the others
+     */
+    private static final int MAX_PYRAMID_SHARE = 4;
+
+    private static TilePyramidCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    TilePyramidCache(File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    static synchronized TilePyramidCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+            sInstance = new TilePyramidCache(directory, MAX_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the cache key of the pyramid for a source file
+     */
+    static String getKey(File source) {
+        return sha1(source.getAbsolutePath() + ':' + source.length() + ':' + source.lastModified());
+    }
+
+    /**
+     * @return the size a single pyramid may have, writing larger ones isn't worth it
+     */
+    long getMaxPyramidSize() {
+        return Math.min(mMaxSizeBytes / MAX_PYRAMID_SHARE, TilePyramidFormat.MAX_FILE_SIZE);
+    }
+
+    /**
+     * @return the pyramid file for the key, or {@code null} if there is none yet
+     */
+    @Nullable
+    synchronized File get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Creates a file to write a new pyramid to. Pass it to {@link #commit} once it is complete.
+     */
+    synchronized File newTempFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        return File.createTempFile("pyramid", TEMP_SUFFIX, mDirectory);
+    }
+
+    /**
+     * Moves a completely written pyramid into the cache and evicts the least recently used
+     * pyramids if the cache grew too large.
+     */
+    synchronized void commit(String key, File tempFile) {
+        File file = getFile(key);
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Failed to commit tile pyramid " + file);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        trimToSize();
+    }
+
+    /**
+     * Removes the pyramid for the key, e.g. because it turned out to be corrupt.
+     */
+    synchronized void remove(String key) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(key).delete();
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + PYRAMID_SUFFIX);
+    }
+
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long sizeBytes = 0;
+        for (File file : files) {
+            sizeBytes += file.length();
+        }
+        if (sizeBytes <= mMaxSizeBytes) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long a = first.lastModified();
+                long b = second.lastModified();
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (sizeBytes <= mMaxSizeBytes) {
+                break;
+            }
+            // Pyramids that are still being written are not ours to evict
+            if (!file.getName().endsWith(PYRAMID_SUFFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                sizeBytes -= length;
+            }
+        }
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
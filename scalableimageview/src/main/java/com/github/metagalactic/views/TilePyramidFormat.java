@@ -0,0 +1,190 @@
+package com.github.metagalactic.views;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a tile pyramid file. Every tile of a {@link TiledImageDrawable}, plus its base layer,
+ * is stored as a PNG, so that a pyramid takes up a fraction of the memory its tiles would without
+ * losing any detail. Decoding such a small, self-contained tile is
+ * still far cheaper than decoding a region of the source. All values are big endian.
+ * <pre>
+ * header:  magic, version, width, height, tile size, base sample size, config, level count  (ints)
+ * levels:  columns, rows for every level                                                   (ints)
+ * index:   offset (long), length, width, height (ints) for the base layer, then for every tile
+ *          of level 0, 1, ... in row-major order
+ * data:    the compressed data of every entry, at the offsets given in the index
+ * </pre>
+ * The index entry of any (level, column, row) is found in constant time from the level sizes. A
+ * pyramid is read through a single memory map, so it can't be larger than {@link #MAX_FILE_SIZE}.
+ */
+final class TilePyramidFormat {
+
+    static final int MAGIC = 0x53495650; // "SIVP"
+    static final int VERSION = 3;
+
+    static final int CONFIG_ARGB_8888 = 0;
+
+    static final int HEADER_SIZE = 8 * 4;
+    static final int LEVEL_SIZE = 2 * 4;
+    static final int ENTRY_SIZE = 8 + 3 * 4;
+
+    static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+    private TilePyramidFormat() {
+    }
+
+    /**
+     * @return the position of the first index entry, i.e. the one of the base layer
+     */
+    static int getIndexPosition(int levelCount) {
+        return HEADER_SIZE + levelCount * LEVEL_SIZE;
+    }
+
+    /**
+     * @return the total size of the header, level sizes and index
+     */
+    static long getDataPosition(int levelCount, int tileCount) {
+        return getIndexPosition(levelCount) + (long) (tileCount + 1) * ENTRY_SIZE;
+    }
+
+    /**
+     * Writes the header and level sizes, leaving the buffer positioned at the first index entry.
+     */
+    static void putHeader(ByteBuffer buffer, int width, int height, int tileSize, int baseSampleSize,
+                          int[] columns, int[] rows) {
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(width)
+                .putInt(height)
+                .putInt(tileSize)
+                .putInt(baseSampleSize)
+                .putInt(CONFIG_ARGB_8888)
+                .putInt(columns.length);
+        for (int level = 0; level < columns.length; level++) {
+            buffer.putInt(columns[level]).putInt(rows[level]);
+        }
+    }
+
+    /**
+     * Writes the next index entry.
+     */
+    static void putEntry(ByteBuffer buffer, long offset, int length, int width, int height) {
+        buffer.putLong(offset).putInt(length).putInt(width).putInt(height);
+    }
+
+    /**
+     * Reads and validates the header of a complete pyramid.
+     *
+     * @param buffer the whole pyramid file
+     * @throws IOException if the buffer doesn't hold a complete pyramid of this version
+     */
+    static Header readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getInt(24) != CONFIG_ARGB_8888) {
+            throw new IOException("Not a tile pyramid");
+        }
+
+        int levelCount = buffer.getInt(28);
+        if (levelCount < 0 || getIndexPosition(levelCount) > buffer.limit()) {
+            throw new IOException("Truncated tile pyramid");
+        }
+        int[] columns = new int[levelCount];
+        int[] rows = new int[levelCount];
+        long tileCount = 0;
+        for (int level = 0; level < levelCount; level++) {
+            int position = HEADER_SIZE + level * LEVEL_SIZE;
+            columns[level] = buffer.getInt(position);
+            rows[level] = buffer.getInt(position + 4);
+            if (columns[level] <= 0 || rows[level] <= 0) {
+                throw new IOException("Invalid tile pyramid level " + level);
+            }
+            tileCount += (long) columns[level] * rows[level];
+        }
+        if (tileCount > Integer.MAX_VALUE || getDataPosition(levelCount, (int) tileCount) > buffer.limit()) {
+            throw new IOException("Truncated tile pyramid");
+        }
+
+        return new Header(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16), buffer.getInt(20),
+                columns, rows);
+    }
+
+    /**
+     * @return the offset of an entry's data, checked to lie within the buffer
+     * @throws IOException if the entry points outside of the buffer
+     */
+    static int getEntryOffset(ByteBuffer buffer, int entryPosition) throws IOException {
+        long offset = buffer.getLong(entryPosition);
+        int length = getEntryLength(buffer, entryPosition);
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IOException("Invalid tile pyramid entry at " + entryPosition);
+        }
+        return (int) offset;
+    }
+
+    static int getEntryLength(ByteBuffer buffer, int entryPosition) {
+        return buffer.getInt(entryPosition + 8);
+    }
+
+    static int getEntryWidth(ByteBuffer buffer, int entryPosition) {
+        return buffer.getInt(entryPosition + 12);
+    }
+
+    static int getEntryHeight(ByteBuffer buffer, int entryPosition) {
+        return buffer.getInt(entryPosition + 16);
+    }
+
+    /**
+     * The image and level sizes of a pyramid, which locate every index entry.
+     */
+    static final class Header {
+
+        final int width;
+        final int height;
+        final int tileSize;
+        final int baseSampleSize;
+        final int[] columns;
+        final int[] rows;
+
+        // Index of the first entry of every level, after the base layer
+        private final int[] mLevelStarts;
+
+        Header(int width, int height, int tileSize, int baseSampleSize, int[] columns, int[] rows) {
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.baseSampleSize = baseSampleSize;
+            this.columns = columns;
+            this.rows = rows;
+
+            mLevelStarts = new int[columns.length];
+            int start = 1;
+            for (int level = 0; level < columns.length; level++) {
+                mLevelStarts[level] = start;
+                start += columns[level] * rows[level];
+            }
+        }
+
+        /**
+         * @return the index entry of a tile, or -1 if the pyramid has no such tile. The base layer
+         * is entry 0.
+         */
+        int getEntry(int level, int column, int row) {
+            if (level < 0 || level >= columns.length
+                    || column < 0 || column >= columns[level]
+                    || row < 0 || row >= rows[level]) {
+                return -1;
+            }
+            return mLevelStarts[level] + row * columns[level] + column;
+        }
+
+        /**
+         * @return the position of an entry in the index
+         */
+        int getEntryPosition(int entry) {
+            return getIndexPosition(columns.length) + entry * ENTRY_SIZE;
+        }
+    }
+}
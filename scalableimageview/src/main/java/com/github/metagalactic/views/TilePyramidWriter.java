@@ -0,0 +1,228 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Writes the {@link TilePyramidFormat tile pyramid} of an image by decoding every tile once. The
+ * pyramid is written one entry at a time so that the writing can be interleaved with the decodes
+ * of visible tiles on the {@link TileDecodeScheduler}.
+ */
+@ParametersAreNonnullByDefault
+final class TilePyramidWriter {
+
+    private static final String TAG = TilePyramidWriter.class.getSimpleName();
+
+    /**
+     * Ignored for PNG, which is lossless
+     */
+    private static final int COMPRESS_QUALITY = 100;
+
+    /**
+     * A typical PNG size of photos, used to skip pyramids that likely wouldn't fit before spending
+     * any work on them. Line art compresses far better, and pyramids that turn out larger are
+     * stopped by the size limit while writing.
+     */
+    private static final float ESTIMATED_BYTES_PER_PIXEL = 1f;
+
+    private final TileDecoder mDecoder;
+    private final Tile[][] mLevels;
+    private final int mBaseSampleSize;
+    private final File mFile;
+    private final long mMaxSizeBytes;
+    @Nullable
+    private final BitmapPool mBitmapPool;
+    private final ByteBuffer mIndex;
+
+    @Nullable
+    private RandomAccessFile mOutput;
+    // Reused for the compressed data of every entry
+    @Nullable
+    private EntryBuffer mEntry;
+    private long mPosition;
+    // -1 for the base layer, then the level and tile of the next entry
+    private int mLevel = -1;
+    private int mTile;
+
+    /**
+     * @param decoder        decodes the tiles
+     * @param levels         the tiles of every level, as laid out by the drawable
+     * @param tileSize       the size of a decoded tile
+     * @param baseSampleSize the sample size of the base layer
+     * @param file           the file to write to
+     * @param maxSizeBytes   the size the file may grow to before writing fails
+     * @param bitmapPool     a pool to decode tiles into and hand them back to, or {@code null}
+     */
+    TilePyramidWriter(TileDecoder decoder, Tile[][] levels, int tileSize, int baseSampleSize, File file,
+                      long maxSizeBytes, @Nullable BitmapPool bitmapPool) {
+        mDecoder = decoder;
+        mLevels = levels;
+        mBaseSampleSize = baseSampleSize;
+        mFile = file;
+        mMaxSizeBytes = Math.min(maxSizeBytes, TilePyramidFormat.MAX_FILE_SIZE);
+        mBitmapPool = bitmapPool;
+
+        int tileCount = 0;
+        int[] columns = new int[levels.length];
+        int[] rows = new int[levels.length];
+        for (int level = 0; level < levels.length; level++) {
+            Tile last = levels[level][levels[level].length - 1];
+            columns[level] = last.column + 1;
+            rows[level] = last.row + 1;
+            tileCount += levels[level].length;
+        }
+        mPosition = TilePyramidFormat.getDataPosition(levels.length, tileCount);
+        mIndex = ByteBuffer.allocate((int) mPosition);
+        TilePyramidFormat.putHeader(mIndex, decoder.getWidth(), decoder.getHeight(), tileSize, baseSampleSize,
+                columns, rows);
+    }
+
+    /**
+     * Estimates the size of the pyramid of an image from the number of pixels it holds.
+     *
+     * @param levels         the tiles of every level, as laid out by the drawable
+     * @param width          the width of the image
+     * @param height         the height of the image
+     * @param baseSampleSize the sample size of the base layer
+     * @return the estimated file size
+     */
+    static long estimateSize(Tile[][] levels, int width, int height, int baseSampleSize) {
+        int tileCount = 0;
+        long pixels = (long) divideRoundingUp(width, baseSampleSize) * divideRoundingUp(height, baseSampleSize);
+        for (Tile[] level : levels) {
+            tileCount += level.length;
+            for (Tile tile : level) {
+                pixels += (long) divideRoundingUp(tile.imageRect.width(), tile.sampleSize)
+                        * divideRoundingUp(tile.imageRect.height(), tile.sampleSize);
+            }
+        }
+        return TilePyramidFormat.getDataPosition(levels.length, tileCount)
+                + (long) (pixels * ESTIMATED_BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Decodes and writes the next entry.
+     *
+     * @return whether there are more entries to write
+     * @throws IOException if the entry can't be decoded or written, or the pyramid grows too large
+     */
+    boolean writeNext() throws IOException {
+        if (mOutput == null) {
+            mOutput = new RandomAccessFile(mFile, "rw");
+            mOutput.setLength(0);
+        }
+
+        if (mLevel < 0) {
+            writeEntry(mDecoder.decodeBaseLayer(mBaseSampleSize));
+            mLevel = 0;
+        } else {
+            writeEntry(mDecoder.decodeTile(mLevels[mLevel][mTile], mBitmapPool));
+            mTile++;
+            if (mTile == mLevels[mLevel].length) {
+                mTile = 0;
+                mLevel++;
+            }
+        }
+        return mLevel < mLevels.length;
+    }
+
+    /**
+     * Writes the index once all entries are written and closes the file.
+     */
+    void finish() throws IOException {
+        if (mOutput == null || mLevel < mLevels.length) {
+            throw new IllegalStateException("Pyramid is incomplete");
+        }
+
+        // The header goes in last, so a pyramid that wasn't written completely is never valid
+        FileChannel channel = mOutput.getChannel();
+        mIndex.flip();
+        while (mIndex.hasRemaining()) {
+            channel.write(mIndex, mIndex.position());
+        }
+        channel.force(false);
+        close();
+    }
+
+    /**
+     * Stops writing and deletes the file.
+     */
+    void abort() {
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Failed to delete tile pyramid " + mFile);
+        }
+    }
+
+    private void writeEntry(@Nullable Bitmap bitmap) throws IOException {
+        if (bitmap == null) {
+            throw new IOException("Failed to decode pyramid entry " + mLevel + "/" + mTile);
+        }
+        try {
+            if (mEntry == null) {
+                mEntry = new EntryBuffer();
+            }
+            EntryBuffer entry = mEntry;
+            entry.reset();
+            // Lossless, so that a cached image looks exactly like one decoded from the source
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, COMPRESS_QUALITY, entry)) {
+                throw new IOException("Failed to compress pyramid entry " + mLevel + "/" + mTile);
+            }
+
+            int length = entry.size();
+            if (mPosition + length > mMaxSizeBytes) {
+                throw new IOException("Tile pyramid exceeds " + mMaxSizeBytes + " bytes");
+            }
+            TilePyramidFormat.putEntry(mIndex, mPosition, length, bitmap.getWidth(), bitmap.getHeight());
+            mOutput.seek(mPosition);
+            entry.writeTo(mOutput);
+            mPosition += length;
+        } finally {
+            if (mBitmapPool != null) {
+                mBitmapPool.put(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private void close() {
+        mEntry = null;
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close tile pyramid " + mFile, e);
+            }
+            mOutput = null;
+        }
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Hands its bytes to the file without copying them first.
+     */
+    private static final class EntryBuffer extends ByteArrayOutputStream {
+
+        EntryBuffer() {
+            super(TiledImageDrawable.TILE_SIZE * TiledImageDrawable.TILE_SIZE);
+        }
+
+        void writeTo(RandomAccessFile output) throws IOException {
+            output.write(buf, 0, count);
+        }
+    }
+}
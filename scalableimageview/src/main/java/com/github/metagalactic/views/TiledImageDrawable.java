@@ -0,0 +1,527 @@
+package com.github.metagalactic.views;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A drawable backed by a {@link TileDecoder} that only decodes the visible part of a very large
+ * image, at the sample size needed for the current scale.
+ * <p>
+ * The image is split into a pyramid of levels where level {@code n} is decoded with a sample size
+ * of {@code 2^n}. A single low resolution base layer covering the whole image is always drawn
+ * first, and the tiles of the level matching the current scale are drawn on top of it as they
+ * stream in. Decoded tiles are kept in a shared {@link TileCache} so that panning back or zooming
+ * out again doesn't decode them a second time. Decodes run on the shared {@link TileDecodeScheduler},
+ * closest to the viewport center first, and are cancelled once their tile scrolls out of view. The
+ * intrinsic size of the drawable is the full resolution image size, after applying the EXIF
+ * orientation, which lets {@link ScalableImageView} apply its usual matrix logic unchanged.
+ * <p>
+ * Once the visible tiles are decoded, the whole pyramid can be written to a
+ * {@link TilePyramidCache} in the background, so that the next time the image is opened its tiles
+ * are read from a memory-mapped file instead of being decoded again.
+ * <p>
+ * Until the base layer is decoded, an optional placeholder, e.g. a thumbnail that is already in
+ * memory, is drawn stretched over the whole image instead.
+ * <p>
+ * In low-cost mode, i.e. while pinching, no tiles are decoded and the cached tiles of any level at
+ * least as coarse as the needed one are drawn instead, without filtering.
+ */
+@ParametersAreNonnullByDefault
+final class TiledImageDrawable extends Drawable implements ViewportAwareDrawable {
+
+    private static final String TAG = TiledImageDrawable.class.getSimpleName();
+
+    /**
+     * Size of a decoded tile in pixels, independent of its level
+     */
+    static final int TILE_SIZE = 512;
+
+    /**
+     * Maximum size of the longest side of the base layer in pixels
+     */
+    private static final int BASE_LAYER_MAX_SIZE = 1024;
+
+    /**
+     * Priority penalty for a tile that belongs to a different level than the one currently needed,
+     * in tile widths. Keeps tiles of the needed level ahead of any other level.
+     */
+    private static final float LEVEL_PRIORITY_PENALTY = 100f;
+
+    /**
+     * Priority offset for prefetched tiles, so that they are decoded after the visible tiles of the
+     * needed level but before tiles of any other level
+     */
+    private static final float PREFETCH_PRIORITY_OFFSET = LEVEL_PRIORITY_PENALTY / 2f;
+
+    /**
+     * The base layer is decoded before any tile
+     */
+    private static final float BASE_LAYER_PRIORITY = -1f;
+
+    /**
+     * Writing the pyramid only runs when there is nothing else to decode
+     */
+    private static final float PYRAMID_PRIORITY = Float.MAX_VALUE;
+
+    private final TileDecoder mDecoder;
+    private final TileCache mTileCache;
+    private final TileDecodeScheduler mScheduler = TileDecodeScheduler.getInstance();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Rect mImageRect;
+    private final Rect mOrientedRect;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final RectF mPredictedRect = new RectF();
+    private final RectF mVisibleRect = new RectF();
+    // Maps stored image coordinates to oriented ones, and back
+    private final Matrix mOrientationMatrix = new Matrix();
+    private final Matrix mInverseOrientationMatrix = new Matrix();
+
+    private final int mBaseSampleSize;
+    private final int mHeight;
+    private final int mWidth;
+    private final int mOrientedHeight;
+    private final int mOrientedWidth;
+    private final Tile[][] mLevels;
+
+    @Nullable
+    private Bitmap mBaseLayer;
+    @Nullable
+    private Bitmap mPlaceholder;
+    private int mCurrentLevel = -1;
+    private boolean mIsLowCostMode;
+    private volatile boolean mIsRecycled = false;
+
+    TiledImageDrawable(TileDecoder decoder, TileCache tileCache) {
+        this(decoder, tileCache, ExifInterface.ORIENTATION_NORMAL);
+    }
+
+    /**
+     * @param orientation the EXIF orientation to show the image in
+     */
+    TiledImageDrawable(TileDecoder decoder, TileCache tileCache, int orientation) {
+        mDecoder = decoder;
+        mTileCache = tileCache;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mImageRect = new Rect(0, 0, mWidth, mHeight);
+
+        boolean isTransposed = ImageHeader.isTransposed(orientation);
+        mOrientedWidth = isTransposed ? mHeight : mWidth;
+        mOrientedHeight = isTransposed ? mWidth : mHeight;
+        mOrientedRect = new Rect(0, 0, mOrientedWidth, mOrientedHeight);
+        ImageHeader.setOrientationMatrix(mOrientationMatrix, orientation, mWidth, mHeight);
+        mOrientationMatrix.invert(mInverseOrientationMatrix);
+
+        int baseSampleSize = 1;
+        while (Math.max(mWidth, mHeight) / baseSampleSize > BASE_LAYER_MAX_SIZE) {
+            baseSampleSize *= 2;
+        }
+        mBaseSampleSize = baseSampleSize;
+
+        // Levels coarser than the base layer are never needed
+        int levelCount = Integer.numberOfTrailingZeros(mBaseSampleSize);
+        mLevels = new Tile[levelCount][];
+        for (int level = 0; level < levelCount; level++) {
+            mLevels[level] = createLevel(level);
+        }
+
+        decodeBaseLayer();
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas) {
+        Rect bounds = getBounds();
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        int saveCount = canvas.save();
+        canvas.translate(bounds.left, bounds.top);
+        canvas.scale(bounds.width() / (float) mOrientedWidth, bounds.height() / (float) mOrientedHeight);
+        // Low-cost mode doesn't filter, without touching the filter setting of the drawable
+        boolean isFilteringBitmap = mPaint.isFilterBitmap();
+        if (mIsLowCostMode) {
+            mPaint.setFilterBitmap(false);
+        }
+
+        Bitmap baseLayer = mBaseLayer;
+        if (baseLayer == null && mPlaceholder != null) {
+            // Already shown in its final orientation
+            canvas.drawBitmap(mPlaceholder, null, mOrientedRect, mPaint);
+        }
+
+        canvas.concat(mOrientationMatrix);
+        if (baseLayer != null) {
+            canvas.drawBitmap(baseLayer, null, mImageRect, mPaint);
+        }
+
+        if (mIsLowCostMode) {
+            // Nothing is decoded meanwhile, so fill in with what is cached, coarsest first
+            for (int level = mLevels.length - 1; level >= Math.max(mCurrentLevel, 0); level--) {
+                drawTiles(canvas, mLevels[level], mVisibleRect);
+            }
+        } else if (mCurrentLevel >= 0) {
+            drawTiles(canvas, mLevels[mCurrentLevel], mVisibleRect);
+        }
+
+        mPaint.setFilterBitmap(isFilteringBitmap);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mOrientedHeight;
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mOrientedWidth;
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    @Override
+    public void onViewportChanged(RectF visibleRect, float scale, RectF predictedRect, float predictedScale) {
+        if (mIsRecycled) {
+            return;
+        }
+
+        // Tiles are laid out in stored image coordinates
+        mInverseOrientationMatrix.mapRect(mVisibleRect, visibleRect);
+        mInverseOrientationMatrix.mapRect(mPredictedRect, predictedRect);
+        int level = getLevelForScale(scale);
+        int predictedLevel = getLevelForScale(predictedScale);
+        if (level != mCurrentLevel) {
+            mCurrentLevel = level;
+            invalidateSelf();
+        }
+        if (mIsLowCostMode) {
+            return;
+        }
+
+        // Tiles that are no longer visible stay in the cache until they are evicted, but pending
+        // decodes for them are dropped so they don't hold up the tiles that are actually visible.
+        for (int i = 0; i < mLevels.length; i++) {
+            for (Tile tile : mLevels[i]) {
+                boolean isVisible = i == level && intersects(mVisibleRect, tile);
+                boolean isPredicted = !isVisible && i == predictedLevel && intersects(mPredictedRect, tile);
+                boolean wasVisible = tile.isVisible;
+                tile.isVisible = isVisible;
+
+                if (isVisible && tile.isPrefetched) {
+                    tile.isPrefetched = false;
+                    if (tile.bitmap != null) {
+                        mTileCache.recordPrefetchHit();
+                    }
+                }
+
+                if (tile.decodeTask != null) {
+                    if (isVisible) {
+                        mScheduler.updatePriority(tile.decodeTask, getPriority(tile, level, mVisibleRect));
+                    } else if (isPredicted) {
+                        mScheduler.updatePriority(tile.decodeTask,
+                                PREFETCH_PRIORITY_OFFSET + getPriority(tile, predictedLevel, mPredictedRect));
+                    } else {
+                        mScheduler.cancel(tile.decodeTask);
+                        tile.decodeTask = null;
+                    }
+                } else if (isVisible) {
+                    // Refreshed on every change, so that the tiles being drawn are evicted last
+                    mTileCache.touch(tile);
+                    if (!wasVisible) {
+                        // A hit or miss is a tile coming into view, not every frame it stays visible
+                        mTileCache.recordLookup(tile.bitmap != null);
+                    }
+                    if (tile.bitmap == null) {
+                        decodeTile(tile, getPriority(tile, level, mVisibleRect));
+                    }
+                } else if (isPredicted && tile.bitmap == null) {
+                    tile.isPrefetched = true;
+                    mTileCache.recordPrefetch();
+                    decodeTile(tile, PREFETCH_PRIORITY_OFFSET + getPriority(tile, predictedLevel, mPredictedRect));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a bitmap to draw until the base layer is decoded. It must show the whole image in its
+     * final orientation, at any resolution, and is not recycled by the drawable.
+     */
+    void setPlaceholder(@Nullable Bitmap placeholder) {
+        if (mBaseLayer == null && !mIsRecycled) {
+            mPlaceholder = placeholder;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void setLowCostMode(boolean isLowCostMode) {
+        if (mIsLowCostMode != isLowCostMode) {
+            mIsLowCostMode = isLowCostMode;
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Releases all decoded tiles and the underlying decoder. The drawable draws nothing afterwards.
+     */
+    void recycle() {
+        if (mIsRecycled) {
+            return;
+        }
+        mIsRecycled = true;
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        // Hand the tile bitmaps back to the pool so that the next image can reuse them
+        for (Tile[] level : mLevels) {
+            for (Tile tile : level) {
+                if (tile.decodeTask != null) {
+                    mScheduler.cancel(tile.decodeTask);
+                    tile.decodeTask = null;
+                }
+                if (tile.bitmap != null) {
+                    mTileCache.remove(tile);
+                }
+            }
+        }
+        if (mBaseLayer != null) {
+            mBaseLayer.recycle();
+            mBaseLayer = null;
+        }
+        // Owned by the caller, so it is only let go of
+        mPlaceholder = null;
+
+        // Recycling waits for a running decode to finish, so keep it off the main thread
+        mScheduler.submit(new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                mDecoder.recycle();
+            }
+        }, BASE_LAYER_PRIORITY);
+    }
+
+    /**
+     * Writes the tile pyramid of the image to the cache, one entry at a time at the lowest
+     * priority. Writing stops if the drawable is recycled first, and is skipped altogether if the
+     * pyramid would likely take up too much of the cache.
+     */
+    void writePyramid(final TilePyramidCache cache, final String key) {
+        final long maxSizeBytes = cache.getMaxPyramidSize();
+        if (TilePyramidWriter.estimateSize(mLevels, mWidth, mHeight, mBaseSampleSize) > maxSizeBytes) {
+            Log.d(TAG, "Not caching the tile pyramid of a " + mWidth + "x" + mHeight + " image");
+            return;
+        }
+
+        mScheduler.submit(new TileDecodeScheduler.Task() {
+            // Created by the first run, so that no file is touched on the main thread
+            @Nullable
+            private File mFile;
+            @Nullable
+            private TilePyramidWriter mWriter;
+
+            @Override
+            void execute() {
+                if (mIsRecycled) {
+                    if (mWriter != null) {
+                        mWriter.abort();
+                    }
+                    return;
+                }
+                try {
+                    if (mWriter == null) {
+                        mFile = cache.newTempFile();
+                        mWriter = new TilePyramidWriter(mDecoder, mLevels, TILE_SIZE, mBaseSampleSize, mFile,
+                                maxSizeBytes, mTileCache.getBitmapPool());
+                    }
+                    if (mWriter.writeNext()) {
+                        // Requeue, so that visible tiles requested meanwhile go first
+                        mScheduler.submit(this, PYRAMID_PRIORITY);
+                        return;
+                    }
+                    mWriter.finish();
+                    cache.commit(key, mFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write tile pyramid", e);
+                    if (mWriter != null) {
+                        mWriter.abort();
+                    }
+                }
+            }
+        }, PYRAMID_PRIORITY);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(@Nullable ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setFilterBitmap(boolean filter) {
+        mPaint.setFilterBitmap(filter);
+        mPaint.setDither(filter);
+        invalidateSelf();
+    }
+
+    /**
+     * Draws the decoded tiles that intersect the visible rect. The others would be clipped anyway,
+     * but would still be recorded and uploaded.
+     */
+    private void drawTiles(Canvas canvas, Tile[] tiles, RectF visibleRect) {
+        for (Tile tile : tiles) {
+            if (tile.bitmap != null && intersects(visibleRect, tile)) {
+                canvas.drawBitmap(tile.bitmap, null, tile.imageRect, mPaint);
+            }
+        }
+    }
+
+    private Tile[] createLevel(int level) {
+        int sampleSize = 1 << level;
+        int tileImageSize = TILE_SIZE * sampleSize;
+        int columns = (mWidth + tileImageSize - 1) / tileImageSize;
+        int rows = (mHeight + tileImageSize - 1) / tileImageSize;
+
+        Tile[] tiles = new Tile[columns * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                Rect imageRect = new Rect(
+                        column * tileImageSize,
+                        row * tileImageSize,
+                        Math.min(mWidth, (column + 1) * tileImageSize),
+                        Math.min(mHeight, (row + 1) * tileImageSize));
+                tiles[row * columns + column] = new Tile(level, sampleSize, column, row, imageRect);
+            }
+        }
+        return tiles;
+    }
+
+    private void decodeBaseLayer() {
+        mScheduler.submit(new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                final Bitmap bitmap = mIsRecycled ? null : mDecoder.decodeBaseLayer(mBaseSampleSize);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mIsRecycled) {
+                            recycleBitmap(bitmap);
+                            return;
+                        }
+                        mBaseLayer = bitmap;
+                        if (bitmap != null) {
+                            mPlaceholder = null;
+                        }
+                        invalidateSelf();
+                    }
+                });
+            }
+        }, BASE_LAYER_PRIORITY);
+    }
+
+    private void decodeTile(final Tile tile, float priority) {
+        final TileDecodeScheduler.Task task = new TileDecodeScheduler.Task() {
+            @Override
+            void execute() {
+                final TileDecodeScheduler.Task self = this;
+                final Bitmap bitmap = mIsRecycled ? null : mDecoder.decodeTile(tile, mTileCache.getBitmapPool());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTileDecoded(tile, self, bitmap);
+                    }
+                });
+            }
+        };
+        tile.decodeTask = task;
+        mScheduler.submit(task, priority);
+    }
+
+    private void onTileDecoded(Tile tile, TileDecodeScheduler.Task task, @Nullable Bitmap bitmap) {
+        if (tile.decodeTask == task) {
+            tile.decodeTask = null;
+        }
+        if (bitmap == null) {
+            return;
+        }
+        if (mIsRecycled) {
+            mTileCache.getBitmapPool().put(bitmap);
+            return;
+        }
+
+        // Even if the decode was cancelled while running the result is still worth caching
+        tile.bitmap = bitmap;
+        mTileCache.put(tile, bitmap);
+        if (tile.level == mCurrentLevel) {
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Returns the decode priority of a tile: its distance from the viewport center in tile widths,
+     * plus a penalty if it doesn't belong to the level needed for the current scale.
+     */
+    private float getPriority(Tile tile, int neededLevel, RectF viewport) {
+        float tileImageSize = TILE_SIZE * tile.sampleSize;
+        float distance = (float) Math.hypot(
+                tile.imageRect.exactCenterX() - viewport.centerX(),
+                tile.imageRect.exactCenterY() - viewport.centerY()) / tileImageSize;
+        return distance + LEVEL_PRIORITY_PENALTY * Math.abs(tile.level - neededLevel);
+    }
+
+    /**
+     * Picks the pyramid level whose sample size is the largest power of two that still provides at
+     * least one decoded pixel per screen pixel. Returns {@code -1} if the base layer is enough.
+     */
+    private int getLevelForScale(float scale) {
+        if (scale <= 0f) {
+            return -1;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 <= 1f / scale) {
+            sampleSize *= 2;
+        }
+        if (sampleSize >= mBaseSampleSize) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(sampleSize);
+    }
+
+    private static boolean intersects(RectF rect, Tile tile) {
+        return rect.intersects(tile.imageRect.left, tile.imageRect.top,
+                tile.imageRect.right, tile.imageRect.bottom);
+    }
+
+    private static void recycleBitmap(@Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.metagalactic.views;
+
+import android.graphics.RectF;
+
+/**
+ * A drawable that wants to know which part of it is currently visible inside a
+ * {@link ScalableImageView}, e.g. to only decode or draw that part.
+ */
+interface ViewportAwareDrawable {
+
+    /**
+     * Called whenever the image matrix of the hosting view changes.
+     *
+     * @param visibleRect    the visible part of the drawable, in intrinsic drawable coordinates
+     * @param scale          the number of screen pixels per intrinsic drawable pixel
+     * @param predictedRect  where the visible part is expected to be shortly, extrapolated from the
+     *                       current pan and pinch velocity. Equal to {@code visibleRect} while the
+     *                       viewport is at rest.
+     * @param predictedScale the scale expected along with {@code predictedRect}
+     */
+    void onViewportChanged(RectF visibleRect, float scale, RectF predictedRect, float predictedScale);
+
+    /**
+     * Called when the hosting view starts or stops pinching or animating. While in low-cost mode,
+     * the drawable should draw from what it already has instead of starting new work, and may skip
+     * bitmap filtering. The viewport is dispatched again once low-cost mode ends.
+     */
+    void setLowCostMode(boolean isLowCostMode);
+}
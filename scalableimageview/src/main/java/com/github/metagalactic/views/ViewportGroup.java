@@ -0,0 +1,151 @@
+package com.github.metagalactic.views;
+
+import android.support.annotation.Nullable;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Links the viewports of several {@link ScalableImageView}s, e.g. for a before/after comparison,
+ * so that panning or zooming any of them moves all of them.
+ * <p>
+ * The view whose transform changed last in a frame is the source. Right before the frame is
+ * drawn, its scale and its translation relative to the fitted image size are applied to every
+ * other view on top of that view's own fit-center base, so all views move in the same frame. A
+ * transform applied this way doesn't propagate any further, and nothing is allocated per frame.
+ * The pre-draw listener stays registered with the window of the source until that view is
+ * detached, so that a group never keeps a window it isn't shown in.
+ * <p>
+ * Must only be used on the main thread.
+ */
+@ParametersAreNonnullByDefault
+public final class ViewportGroup {
+
+    private final List<ScalableImageView> mViews = new ArrayList<>();
+
+    @Nullable
+    private ScalableImageView mSource;
+    @Nullable
+    private ViewTreeObserver mObserver;
+    // The view the observer was taken from
+    @Nullable
+    private ScalableImageView mObserverView;
+    private boolean mIsDispatching;
+
+    private final ViewTreeObserver.OnPreDrawListener mPreDrawListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            dispatch();
+            return true;
+        }
+    };
+
+    /**
+     * Links a view to the group. It takes on the current transform of the group right away.
+     */
+    public void addView(ScalableImageView view) {
+        if (mViews.contains(view)) {
+            return;
+        }
+        view.setViewportGroup(this);
+        mViews.add(view);
+        if (mViews.size() > 1) {
+            ScalableImageView source = mSource != null ? mSource : mViews.get(0);
+            apply(source, view);
+        }
+    }
+
+    /**
+     * Unlinks a view from the group. It keeps its current transform.
+     */
+    public void removeView(ScalableImageView view) {
+        if (!mViews.remove(view)) {
+            return;
+        }
+        view.setViewportGroup(null);
+        if (mSource == view) {
+            mSource = null;
+        }
+        if (view == mObserverView) {
+            // It won't report its detach anymore
+            dispatch();
+            unregister();
+        } else if (mViews.isEmpty()) {
+            unregister();
+        }
+    }
+
+    /**
+     * Called by a view of the group whenever its transform changes. The change is handed on once,
+     * right before the next frame is drawn.
+     */
+    void onTransformChanged(ScalableImageView source) {
+        if (mIsDispatching) {
+            // Applied by this group, don't echo it back
+            return;
+        }
+        mSource = source;
+        if (source.getWindowToken() == null) {
+            // No frame is coming, and a listener added now would be merged into the next window
+            // the view is attached to, out of reach of unregister()
+            dispatch();
+            return;
+        }
+
+        // Stays registered, so that pans and pinches don't add and remove a listener every frame
+        ViewTreeObserver observer = source.getViewTreeObserver();
+        if (observer != mObserver || mObserver == null || !mObserver.isAlive()) {
+            unregister();
+            mObserver = observer;
+            mObserverView = source;
+            observer.addOnPreDrawListener(mPreDrawListener);
+        }
+    }
+
+    /**
+     * Called by a view of the group when it is detached from its window.
+     */
+    void onViewDetached(ScalableImageView view) {
+        if (view == mObserverView) {
+            // The listener may never be called again, hand a pending change on right away
+            dispatch();
+            unregister();
+        }
+    }
+
+    private void dispatch() {
+        ScalableImageView source = mSource;
+        if (source == null) {
+            return;
+        }
+        mSource = null;
+
+        for (int i = 0, size = mViews.size(); i < size; i++) {
+            ScalableImageView view = mViews.get(i);
+            if (view != source) {
+                apply(source, view);
+            }
+        }
+    }
+
+    private void apply(ScalableImageView source, ScalableImageView view) {
+        mIsDispatching = true;
+        try {
+            view.applyLinkedTransform(source.getCurrentScale(),
+                    source.getRelativeTranslationX(), source.getRelativeTranslationY());
+        } finally {
+            mIsDispatching = false;
+        }
+    }
+
+    private void unregister() {
+        if (mObserver != null && mObserver.isAlive()) {
+            mObserver.removeOnPreDrawListener(mPreDrawListener);
+        }
+        mObserver = null;
+        mObserverView = null;
+    }
+}
@@ -0,0 +1,300 @@
+package com.github.metagalactic.views;
+
+import android.view.MotionEvent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A recorded touch stream plus the state it is expected to leave a {@link ScalableImageView} in.
+ * Recordings are plain text files in {@code src/test/resources/gestures}, one instruction per line:
+ * <pre>
+ * # comment
+ * view 1000 1000                     size of the view
+ * image 500 250                      intrinsic size of the drawable
+ * parent plain|nested|nested_scrolling
+ *                                    a parent that never intercepts, a vertically scrolling one, or a
+ *                                    vertically scrolling nested scrolling parent
+ * budget 700 4869                   max average microseconds and bytes per touch event, i.e. what the
+ *                                    replay measures plus 500us and 16 bytes
+ * zoom 1.5 500 500                   zoomTo() without animation
+ * reset                              resetScaling() without animation
+ * swap 2000 1000                     setImageDrawable() with a drawable of another intrinsic size,
+ *                                    e.g. the full image replacing its placeholder
+ * 16 pointer_down 1 0:350,500 1:650,500
+ * 32 move 0:340,500 1:660,500        time in ms, action [action index], id:x,y per pointer
+ * expect matrix 3 0 -249.25 0 3 125.75 0 0 1
+ * expect unscaled
+ * expect disallow true false         collapsed requestDisallowInterceptTouchEvent() calls
+ * expect stolen true|false           whether the parent intercepted the stream
+ * expect nested_scroll 0 60          total unconsumed nested scroll distance the parent received
+ * </pre>
+ * New recordings can be captured on a device by logging {@link #format(MotionEvent, long)} from an
+ * {@link android.view.View.OnTouchListener}.
+ */
+final class GestureRecording {
+
+    static final String PARENT_PLAIN = "plain";
+    static final String PARENT_NESTED = "nested";
+    static final String PARENT_NESTED_SCROLLING = "nested_scrolling";
+
+    private static final String RESOURCE_DIRECTORY = "gestures/";
+
+    final String name;
+    final List<Step> steps = new ArrayList<>();
+
+    int viewWidth;
+    int viewHeight;
+    int imageWidth;
+    int imageHeight;
+    String parent = PARENT_PLAIN;
+    long budgetMicrosPerEvent = Long.MAX_VALUE;
+    long budgetBytesPerEvent = Long.MAX_VALUE;
+
+    float[] expectedMatrix;
+    boolean expectUnscaled;
+    List<Boolean> expectedDisallow;
+    Boolean expectedStolen;
+    int[] expectedNestedScroll;
+
+    private GestureRecording(String name) {
+        this.name = name;
+    }
+
+    static GestureRecording load(String name) throws IOException {
+        InputStream stream = GestureRecording.class.getClassLoader()
+                .getResourceAsStream(RESOURCE_DIRECTORY + name);
+        if (stream == null) {
+            throw new IOException("No recording named " + name);
+        }
+
+        GestureRecording recording = new GestureRecording(name);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    recording.parseLine(line.split("\\s+"));
+                } catch (RuntimeException e) {
+                    throw new IOException(name + ":" + lineNumber + ": cannot parse '" + line + "'", e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return recording;
+    }
+
+    /**
+     * Formats an event as a recording line, with its time relative to {@code startTime}.
+     */
+    static String format(MotionEvent event, long startTime) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(event.getEventTime() - startTime).append(' ');
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                builder.append("down");
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                builder.append("pointer_down ").append(event.getActionIndex());
+                break;
+            case MotionEvent.ACTION_MOVE:
+                builder.append("move");
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                builder.append("pointer_up ").append(event.getActionIndex());
+                break;
+            case MotionEvent.ACTION_UP:
+                builder.append("up");
+                break;
+            default:
+                builder.append("cancel");
+                break;
+        }
+        for (int i = 0; i < event.getPointerCount(); i++) {
+            builder.append(String.format(Locale.US, " %d:%.1f,%.1f",
+                    event.getPointerId(i), event.getX(i), event.getY(i)));
+        }
+        return builder.toString();
+    }
+
+    private void parseLine(String[] tokens) {
+        switch (tokens[0]) {
+            case "view":
+                viewWidth = Integer.parseInt(tokens[1]);
+                viewHeight = Integer.parseInt(tokens[2]);
+                break;
+            case "image":
+                imageWidth = Integer.parseInt(tokens[1]);
+                imageHeight = Integer.parseInt(tokens[2]);
+                break;
+            case "parent":
+                if (!PARENT_PLAIN.equals(tokens[1]) && !PARENT_NESTED.equals(tokens[1]) &&
+                        !PARENT_NESTED_SCROLLING.equals(tokens[1])) {
+                    throw new IllegalArgumentException("Unknown parent " + tokens[1]);
+                }
+                parent = tokens[1];
+                break;
+            case "budget":
+                budgetMicrosPerEvent = Long.parseLong(tokens[1]);
+                budgetBytesPerEvent = Long.parseLong(tokens[2]);
+                break;
+            case "zoom":
+                steps.add(Step.zoom(Float.parseFloat(tokens[1]),
+                        Float.parseFloat(tokens[2]), Float.parseFloat(tokens[3])));
+                break;
+            case "reset":
+                steps.add(Step.reset());
+                break;
+            case "swap":
+                steps.add(Step.swap(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2])));
+                break;
+            case "expect":
+                parseExpectation(tokens);
+                break;
+            default:
+                steps.add(parseEvent(tokens));
+                break;
+        }
+    }
+
+    private void parseExpectation(String[] tokens) {
+        switch (tokens[1]) {
+            case "matrix":
+                expectedMatrix = new float[9];
+                for (int i = 0; i < expectedMatrix.length; i++) {
+                    expectedMatrix[i] = Float.parseFloat(tokens[i + 2]);
+                }
+                break;
+            case "unscaled":
+                expectUnscaled = true;
+                break;
+            case "disallow":
+                List<Boolean> disallow = new ArrayList<>();
+                for (int i = 2; i < tokens.length; i++) {
+                    disallow.add(Boolean.parseBoolean(tokens[i]));
+                }
+                expectedDisallow = Collections.unmodifiableList(disallow);
+                break;
+            case "stolen":
+                expectedStolen = Boolean.parseBoolean(tokens[2]);
+                break;
+            case "nested_scroll":
+                expectedNestedScroll = new int[]{Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3])};
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown expectation " + tokens[1]);
+        }
+    }
+
+    private static Step parseEvent(String[] tokens) {
+        long time = Long.parseLong(tokens[0]);
+        int index = 2;
+        int action;
+        switch (tokens[1]) {
+            case "down":
+                action = MotionEvent.ACTION_DOWN;
+                break;
+            case "move":
+                action = MotionEvent.ACTION_MOVE;
+                break;
+            case "up":
+                action = MotionEvent.ACTION_UP;
+                break;
+            case "cancel":
+                action = MotionEvent.ACTION_CANCEL;
+                break;
+            case "pointer_down":
+                action = MotionEvent.ACTION_POINTER_DOWN
+                        | (Integer.parseInt(tokens[index++]) << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+                break;
+            case "pointer_up":
+                action = MotionEvent.ACTION_POINTER_UP
+                        | (Integer.parseInt(tokens[index++]) << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown action " + tokens[1]);
+        }
+
+        int pointerCount = tokens.length - index;
+        if (pointerCount < 1 || pointerCount > 2) {
+            // Robolectric's MotionEvent supports at most two pointers
+            throw new IllegalArgumentException("Expected one or two pointers");
+        }
+        int[] ids = new int[pointerCount];
+        float[] xs = new float[pointerCount];
+        float[] ys = new float[pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            String pointer = tokens[index + i];
+            int colon = pointer.indexOf(':');
+            int comma = pointer.indexOf(',');
+            ids[i] = Integer.parseInt(pointer.substring(0, colon));
+            xs[i] = Float.parseFloat(pointer.substring(colon + 1, comma));
+            ys[i] = Float.parseFloat(pointer.substring(comma + 1));
+        }
+        return Step.event(time, action, ids, xs, ys);
+    }
+
+    /**
+     * A single touch event, or a call on the view between events.
+     */
+    static final class Step {
+
+        static final int TYPE_EVENT = 0;
+        static final int TYPE_ZOOM = 1;
+        static final int TYPE_RESET = 2;
+        static final int TYPE_SWAP = 3;
+
+        final int type;
+        final long time;
+        final int action;
+        final int[] ids;
+        final float[] xs;
+        final float[] ys;
+        final float scale;
+
+        private Step(int type, long time, int action, int[] ids, float[] xs, float[] ys, float scale) {
+            this.type = type;
+            this.time = time;
+            this.action = action;
+            this.ids = ids;
+            this.xs = xs;
+            this.ys = ys;
+            this.scale = scale;
+        }
+
+        static Step event(long time, int action, int[] ids, float[] xs, float[] ys) {
+            return new Step(TYPE_EVENT, time, action, ids, xs, ys, 0f);
+        }
+
+        /**
+         * The focus is kept as the first and only "pointer".
+         */
+        static Step zoom(float scale, float focusX, float focusY) {
+            return new Step(TYPE_ZOOM, 0L, 0, new int[]{0}, new float[]{focusX}, new float[]{focusY}, scale);
+        }
+
+        static Step reset() {
+            return new Step(TYPE_RESET, 0L, 0, new int[0], new float[0], new float[0], 0f);
+        }
+
+        /**
+         * The size of the new drawable is kept as the first and only "pointer".
+         */
+        static Step swap(int width, int height) {
+            return new Step(TYPE_SWAP, 0L, 0, new int[]{0}, new float[]{width}, new float[]{height}, 0f);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.metagalactic.views;
+
+import android.widget.ImageView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the recordings in {@code src/test/resources/gestures} and checks the final matrix, the
+ * parent intercept decisions and the per-event time and allocation budgets of each of them.
+ * <p>
+ * Robolectric's shadows allocate on their own, so the allocation budgets only catch regressions.
+ * They are the bytes per event this replay measures plus 16, so that a single {@code PointF} or
+ * {@code RectF} allocated per event fails them; re-measure them when upgrading Robolectric.
+ * {@code ScalableImageViewAllocationTest} checks for zero allocations on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, shadows = RealScaleGestureDetectorShadow.class)
+public class GestureReplayTest {
+
+    private static final float MATRIX_TOLERANCE = 0.01f;
+
+    @Test
+    public void pan() throws Exception {
+        assertReplay("pan.gesture");
+    }
+
+    @Test
+    public void panWithinBounds() throws Exception {
+        assertReplay("pan_within_bounds.gesture");
+    }
+
+    @Test
+    public void pinch() throws Exception {
+        assertReplay("pinch.gesture");
+    }
+
+    @Test
+    public void pointerSwap() throws Exception {
+        assertReplay("pointer_swap.gesture");
+    }
+
+    @Test
+    public void resetMidGesture() throws Exception {
+        assertReplay("reset_mid_gesture.gesture");
+    }
+
+    @Test
+    public void placeholderSwap() throws Exception {
+        assertReplay("placeholder_swap.gesture");
+    }
+
+    @Test
+    public void nestedScrollParent() throws Exception {
+        assertReplay("nested_scroll_parent.gesture");
+    }
+
+    @Test
+    public void nestedScrollParentWhileScaled() throws Exception {
+        assertReplay("nested_scroll_parent_scaled.gesture");
+    }
+
+    @Test
+    public void nestedScrollingParent() throws Exception {
+        assertReplay("nested_scrolling_parent.gesture");
+    }
+
+    @Test
+    public void nestedScrollingParentWhileScaled() throws Exception {
+        assertReplay("nested_scrolling_parent_scaled.gesture");
+    }
+
+    private static void assertReplay(String name) throws Exception {
+        GestureRecording recording = GestureRecording.load(name);
+        GestureReplayer.Result result = GestureReplayer.replay(recording);
+
+        if (recording.expectedMatrix != null) {
+            for (int i = 0; i < recording.expectedMatrix.length; i++) {
+                assertEquals(name + ": matrix[" + i + "]",
+                        recording.expectedMatrix[i], result.matrix[i], MATRIX_TOLERANCE);
+            }
+        }
+        if (recording.expectUnscaled) {
+            assertFalse(name + ": still scaled", result.isScaled);
+            assertEquals(name + ": scale type", ImageView.ScaleType.FIT_CENTER, result.scaleType);
+        }
+        if (recording.expectedDisallow != null) {
+            assertEquals(name + ": intercept requests", recording.expectedDisallow, result.disallow);
+        }
+        if (recording.expectedStolen != null) {
+            assertEquals(name + ": intercepted by parent", recording.expectedStolen, result.isStolen);
+        }
+        if (recording.expectedNestedScroll != null) {
+            assertEquals(name + ": nested scroll x", recording.expectedNestedScroll[0], result.nestedScrollX);
+            assertEquals(name + ": nested scroll y", recording.expectedNestedScroll[1], result.nestedScrollY);
+        }
+
+        assertTrue(name + ": no events reached the view", result.eventCount > 0);
+        assertTrue(name + ": " + result.getAverageMicrosPerEvent() + "us per event (max "
+                        + result.maxNanos / 1000L + "us), budget " + recording.budgetMicrosPerEvent + "us",
+                result.getAverageMicrosPerEvent() <= recording.budgetMicrosPerEvent);
+        if (GestureReplayer.isAllocationTrackingSupported()) {
+            assertTrue(name + ": " + result.getAverageBytesPerEvent() + " bytes per event, budget "
+                            + recording.budgetBytesPerEvent + " bytes",
+                    result.getAverageBytesPerEvent() <= recording.budgetBytesPerEvent);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.github.metagalactic.views;
+
+import android.content.Context;
+import android.graphics.drawable.ColorDrawable;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Replays a {@link GestureRecording} against a freshly laid out {@link ScalableImageView} and
+ * collects what the view did with it. Every recording is replayed a few times first so that class
+ * loading, lazily created framework objects and the JIT don't count against the measured runs. Of
+ * those, the lowest time and allocations are kept, so that a garbage collection, a busy machine or
+ * a compilation that happened to finish during a run doesn't count either.
+ */
+final class GestureReplayer {
+
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 10;
+
+    private static final com.sun.management.ThreadMXBean THREADS = getThreadBean();
+
+    private GestureReplayer() {
+    }
+
+    static Result replay(GestureRecording recording) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run(recording);
+        }
+        Result fastest = null;
+        long fewestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            Result result = run(recording);
+            fewestBytes = Math.min(result.totalBytes, fewestBytes);
+            if (fastest == null || result.totalNanos < fastest.totalNanos) {
+                fastest = result;
+            }
+        }
+        fastest.totalBytes = fewestBytes;
+        return fastest;
+    }
+
+    /**
+     * Allocations are measured with the HotSpot thread allocation counters, which not every JVM
+     * has.
+     */
+    static boolean isAllocationTrackingSupported() {
+        return THREADS != null;
+    }
+
+    private static Result run(GestureRecording recording) {
+        Context context = RuntimeEnvironment.application;
+        boolean isNestedScrollingParent = GestureRecording.PARENT_NESTED_SCROLLING.equals(recording.parent);
+        RecordingParent parent = new RecordingParent(context,
+                isNestedScrollingParent || GestureRecording.PARENT_NESTED.equals(recording.parent),
+                isNestedScrollingParent);
+        ScalableImageView view = new ScalableImageView(context);
+        // Clickable like in the sample, as a view that doesn't handle the down event gets no more of the
+        // stream and loses its nested scroll
+        view.setClickable(true);
+        view.setImageDrawable(new FixedSizeDrawable(recording.imageWidth, recording.imageHeight));
+        parent.addView(view, new FrameLayout.LayoutParams(recording.viewWidth, recording.viewHeight));
+        parent.measure(
+                View.MeasureSpec.makeMeasureSpec(recording.viewWidth, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(recording.viewHeight, View.MeasureSpec.EXACTLY));
+        parent.layout(0, 0, recording.viewWidth, recording.viewHeight);
+
+        // Obtain all events up front so that the replay itself only measures the view
+        long startTime = SystemClock.uptimeMillis();
+        long downTime = startTime;
+        List<MotionEvent> events = new ArrayList<>(recording.steps.size());
+        for (GestureRecording.Step step : recording.steps) {
+            if (step.type != GestureRecording.Step.TYPE_EVENT) {
+                events.add(null);
+                continue;
+            }
+            if (step.action == MotionEvent.ACTION_DOWN) {
+                downTime = startTime + step.time;
+            }
+            events.add(obtain(downTime, startTime + step.time, step));
+        }
+
+        Result result = new Result();
+        for (int i = 0; i < events.size(); i++) {
+            GestureRecording.Step step = recording.steps.get(i);
+            switch (step.type) {
+                case GestureRecording.Step.TYPE_ZOOM:
+                    view.zoomTo(step.scale, step.xs[0], step.ys[0], false);
+                    break;
+                case GestureRecording.Step.TYPE_RESET:
+                    view.resetScaling(false);
+                    break;
+                case GestureRecording.Step.TYPE_SWAP:
+                    view.setImageDrawable(new FixedSizeDrawable((int) step.xs[0], (int) step.ys[0]));
+                    break;
+                default:
+                    dispatch(parent, view, events.get(i), result);
+                    break;
+            }
+        }
+
+        view.getImageMatrix().getValues(result.matrix);
+        result.isScaled = view.isScaled();
+        result.scaleType = view.getScaleType();
+        result.disallow = parent.mDisallowCalls;
+        result.isStolen = parent.mHasIntercepted;
+        result.nestedScrollX = parent.mNestedScrollX;
+        result.nestedScrollY = parent.mNestedScrollY;
+
+        for (MotionEvent event : events) {
+            if (event != null) {
+                event.recycle();
+            }
+        }
+        return result;
+    }
+
+    private static void dispatch(RecordingParent parent, View view, MotionEvent event, Result result) {
+        if (parent.mIsIntercepting && event.getActionMasked() != MotionEvent.ACTION_DOWN) {
+            // The rest of the stream belongs to the parent
+            return;
+        }
+        if (parent.onInterceptTouchEvent(event)) {
+            MotionEvent cancel = MotionEvent.obtain(event.getDownTime(), event.getEventTime(),
+                    MotionEvent.ACTION_CANCEL, event.getX(), event.getY(), 0);
+            view.dispatchTouchEvent(cancel);
+            cancel.recycle();
+            return;
+        }
+
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS != null ? THREADS.getThreadAllocatedBytes(thread) : 0L;
+        long start = System.nanoTime();
+        view.dispatchTouchEvent(event);
+        long nanos = System.nanoTime() - start;
+        long bytes = THREADS != null ? THREADS.getThreadAllocatedBytes(thread) - allocated : 0L;
+
+        result.eventCount++;
+        result.totalNanos += nanos;
+        result.maxNanos = Math.max(nanos, result.maxNanos);
+        result.totalBytes += bytes;
+    }
+
+    private static MotionEvent obtain(long downTime, long eventTime, GestureRecording.Step step) {
+        // The shadow keeps the pointer index apart and returns the action as is from getActionMasked()
+        int actionMasked = step.action & MotionEvent.ACTION_MASK;
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, actionMasked, step.xs[0], step.ys[0], 0);
+        shadowOf(event).setPointerIndex(
+                (step.action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+        if (step.ids.length > 1) {
+            shadowOf(event).setPointer2(step.xs[1], step.ys[1]);
+            shadowOf(event).setPointerIds(step.ids[0], step.ids[1]);
+        } else {
+            shadowOf(event).setPointerIds(step.ids[0], step.ids[0] + 1);
+        }
+        return event;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * What a replay did to the view and its parent.
+     */
+    static final class Result {
+
+        final float[] matrix = new float[9];
+        boolean isScaled;
+        ImageView.ScaleType scaleType;
+        List<Boolean> disallow;
+        boolean isStolen;
+        int nestedScrollX;
+        int nestedScrollY;
+
+        int eventCount;
+        long totalNanos;
+        long maxNanos;
+        long totalBytes;
+
+        long getAverageMicrosPerEvent() {
+            return eventCount > 0 ? totalNanos / eventCount / 1000L : 0L;
+        }
+
+        long getAverageBytesPerEvent() {
+            return eventCount > 0 ? totalBytes / eventCount : 0L;
+        }
+    }
+
+    /**
+     * Records the intercept requests of its child. When scrolling, it behaves like a vertically
+     * scrolling parent and steals the stream once its child allows it and the pointer moved
+     * vertically past the touch slop. As a nested scrolling parent, it accepts vertical nested
+     * scrolls instead, doesn't intercept while one is under way and records what it is handed
+     * without actually scrolling.
+     */
+    private static final class RecordingParent extends FrameLayout {
+
+        final List<Boolean> mDisallowCalls = new ArrayList<>();
+        final boolean mIsScrolling;
+        final boolean mIsNestedScrollingParent;
+        final int mTouchSlop;
+        Boolean mLastDisallow;
+        boolean mIsDisallowed;
+        boolean mIsIntercepting;
+        boolean mHasIntercepted;
+        float mDownY;
+        int mNestedScrollX;
+        int mNestedScrollY;
+
+        RecordingParent(Context context, boolean isScrolling, boolean isNestedScrollingParent) {
+            super(context);
+            mIsScrolling = isScrolling;
+            mIsNestedScrollingParent = isNestedScrollingParent;
+            mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+        }
+
+        @Override
+        public void requestDisallowInterceptTouchEvent(boolean disallowIntercept) {
+            // Only record changes, like a ViewGroup only propagates changes to its own parent
+            if (mLastDisallow == null || mLastDisallow != disallowIntercept) {
+                mDisallowCalls.add(disallowIntercept);
+                mLastDisallow = disallowIntercept;
+            }
+            mIsDisallowed = disallowIntercept;
+            super.requestDisallowInterceptTouchEvent(disallowIntercept);
+        }
+
+        @Override
+        public boolean onInterceptTouchEvent(MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    // A ViewGroup resets the flag for every new stream
+                    mIsDisallowed = false;
+                    mIsIntercepting = false;
+                    mLastDisallow = null;
+                    mDownY = event.getY();
+                    break;
+                case MotionEvent.ACTION_MOVE:
+                    boolean isNestedScrolling = (getNestedScrollAxes() & SCROLL_AXIS_VERTICAL) != 0;
+                    if (mIsScrolling && !mIsDisallowed && !isNestedScrolling &&
+                            Math.abs(event.getY() - mDownY) > mTouchSlop) {
+                        mIsIntercepting = true;
+                        mHasIntercepted = true;
+                    }
+                    break;
+            }
+            return mIsIntercepting;
+        }
+
+        @Override
+        public boolean onStartNestedScroll(View child, View target, int axes) {
+            return mIsNestedScrollingParent && (axes & SCROLL_AXIS_VERTICAL) != 0;
+        }
+
+        @Override
+        public void onNestedScroll(View target, int dxConsumed, int dyConsumed, int dxUnconsumed, int dyUnconsumed) {
+            mNestedScrollX += dxUnconsumed;
+            mNestedScrollY += dyUnconsumed;
+        }
+    }
+
+    private static final class FixedSizeDrawable extends ColorDrawable {
+
+        private final int mWidth;
+        private final int mHeight;
+
+        FixedSizeDrawable(int width, int height) {
+            super(0xff808080);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+    }
+}
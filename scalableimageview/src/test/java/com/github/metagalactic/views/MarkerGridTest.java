@@ -0,0 +1,106 @@
+package com.github.metagalactic.views;
+
+import android.graphics.RectF;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MarkerGridTest {
+
+    private static final int WIDTH = 6400;
+    private static final int HEIGHT = 3200;
+
+    @Test
+    public void query_findsMarkersInsideTheRectOnly() {
+        MarkerGrid grid = new MarkerGrid(WIDTH, HEIGHT);
+        Marker inside = add(grid, 150f, 80f);
+        Marker onEdge = add(grid, 300f, 200f);
+        add(grid, 5000f, 3000f);
+        // In a cell the rect covers, but outside of the rect
+        add(grid, 310f, 60f);
+
+        assertQuery(grid, new RectF(100f, 50f, 300f, 200f), inside, onEdge);
+    }
+
+    @Test
+    public void query_findsMarkersOutsideTheImage() {
+        MarkerGrid grid = new MarkerGrid(WIDTH, HEIGHT);
+        // Kept in the closest edge cells
+        Marker left = add(grid, -40f, 1000f);
+        Marker bottomRight = add(grid, WIDTH + 40f, HEIGHT + 20f);
+        Marker inside = add(grid, 20f, 1000f);
+
+        assertQuery(grid, new RectF(-50f, 900f, 0f, 1100f), left);
+        assertQuery(grid, new RectF(-50f, 900f, 50f, 1100f), left, inside);
+        assertQuery(grid, new RectF(WIDTH, HEIGHT, WIDTH + 50f, HEIGHT + 50f), bottomRight);
+        // A rect entirely outside the image only looks at the edge cells
+        assertQuery(grid, new RectF(WIDTH + 30f, HEIGHT + 10f, WIDTH + 100f, HEIGHT + 100f), bottomRight);
+        assertQuery(grid, new RectF(WIDTH + 50f, HEIGHT + 10f, WIDTH + 100f, HEIGHT + 100f));
+    }
+
+    @Test
+    public void findNearest_returnsTheClosestMarkerWithinTheRadius() {
+        MarkerGrid grid = new MarkerGrid(WIDTH, HEIGHT);
+        add(grid, 1000f, 1000f);
+        Marker closest = add(grid, 1090f, 1000f);
+        // In a neighbouring cell
+        add(grid, 1220f, 1000f);
+
+        assertSame(closest, grid.findNearest(1150f, 1000f, 100f));
+        assertNull(grid.findNearest(1150f, 1200f, 100f));
+    }
+
+    @Test
+    public void findNearest_findsMarkersOutsideTheImage() {
+        MarkerGrid grid = new MarkerGrid(WIDTH, HEIGHT);
+        Marker topLeft = add(grid, -30f, -30f);
+        Marker right = add(grid, WIDTH + 200f, 1600f);
+
+        assertSame(topLeft, grid.findNearest(10f, 10f, 60f));
+        assertSame(topLeft, grid.findNearest(-50f, -50f, 30f));
+        assertSame(right, grid.findNearest(WIDTH + 150f, 1600f, 60f));
+        assertNull(grid.findNearest(WIDTH - 10f, 1600f, 60f));
+    }
+
+    @Test
+    public void removedAndClearedMarkers_areNotFound() {
+        MarkerGrid grid = new MarkerGrid(WIDTH, HEIGHT);
+        Marker removed = add(grid, -10f, 500f);
+        Marker kept = add(grid, 10f, 500f);
+
+        assertTrue(grid.remove(removed));
+        assertQuery(grid, new RectF(-20f, 400f, 20f, 600f), kept);
+        assertSame(kept, grid.findNearest(-10f, 500f, 30f));
+
+        grid.clear();
+        assertQuery(grid, new RectF(-20f, 400f, 20f, 600f));
+        assertNull(grid.findNearest(-10f, 500f, 30f));
+    }
+
+    private static Marker add(MarkerGrid grid, float x, float y) {
+        Marker marker = new Marker(x, y);
+        grid.add(marker);
+        return marker;
+    }
+
+    private static void assertQuery(MarkerGrid grid, RectF rect, Marker... expected) {
+        List<Marker> markers = new ArrayList<>();
+        grid.query(rect, markers);
+        assertEquals(expected.length, markers.size());
+        assertEquals(new HashSet<>(Arrays.asList(expected)), new HashSet<>(markers));
+    }
+}
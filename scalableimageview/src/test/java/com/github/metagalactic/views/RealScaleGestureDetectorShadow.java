@@ -0,0 +1,13 @@
+package com.github.metagalactic.views;
+
+import android.view.ScaleGestureDetector;
+
+import org.robolectric.annotation.Implements;
+
+/**
+ * Replaces Robolectric's {@code ShadowScaleGestureDetector}, which only records the last event and
+ * never reports a scale, so that recorded pinches run through the framework's detector.
+ */
+@Implements(value = ScaleGestureDetector.class, callThroughByDefault = true)
+public class RealScaleGestureDetectorShadow {
+}
@@ -0,0 +1,143 @@
+package com.github.metagalactic.views;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TilePyramidFormatTest {
+
+    private static final int[] COLUMNS = {3, 2, 1};
+    private static final int[] ROWS = {2, 1, 1};
+    private static final int TILE_COUNT = 3 * 2 + 2 + 1;
+    private static final int ENTRY_LENGTH = 10;
+
+    @Test
+    public void header_roundTrips() throws Exception {
+        TilePyramidFormat.Header header = TilePyramidFormat.readHeader(writePyramid());
+
+        assertEquals(1200, header.width);
+        assertEquals(700, header.height);
+        assertEquals(512, header.tileSize);
+        assertEquals(8, header.baseSampleSize);
+        assertArrayEquals(COLUMNS, header.columns);
+        assertArrayEquals(ROWS, header.rows);
+    }
+
+    @Test
+    public void entries_roundTrip() throws Exception {
+        ByteBuffer buffer = writePyramid();
+        TilePyramidFormat.Header header = TilePyramidFormat.readHeader(buffer);
+        long dataPosition = TilePyramidFormat.getDataPosition(COLUMNS.length, TILE_COUNT);
+
+        // The base layer, then every level in row-major order
+        int expected = 0;
+        assertEntry(buffer, header, 0, dataPosition, expected++);
+        for (int level = 0; level < COLUMNS.length; level++) {
+            for (int row = 0; row < ROWS[level]; row++) {
+                for (int column = 0; column < COLUMNS[level]; column++) {
+                    int entry = header.getEntry(level, column, row);
+                    assertEquals(expected, entry);
+                    assertEntry(buffer, header, entry, dataPosition, expected++);
+                }
+            }
+        }
+        assertEquals(TILE_COUNT + 1, expected);
+    }
+
+    @Test
+    public void missingTiles_haveNoEntry() throws Exception {
+        TilePyramidFormat.Header header = TilePyramidFormat.readHeader(writePyramid());
+
+        assertEquals(-1, header.getEntry(3, 0, 0));
+        assertEquals(-1, header.getEntry(0, 3, 0));
+        assertEquals(-1, header.getEntry(1, 0, 1));
+        assertEquals(-1, header.getEntry(-1, 0, 0));
+    }
+
+    @Test
+    public void otherVersions_areRejected() throws Exception {
+        ByteBuffer buffer = writePyramid();
+        buffer.putInt(4, TilePyramidFormat.VERSION - 1);
+        assertInvalid(buffer);
+
+        buffer = writePyramid();
+        buffer.putInt(0, 0);
+        assertInvalid(buffer);
+    }
+
+    @Test
+    public void truncatedIndex_isRejected() throws Exception {
+        ByteBuffer buffer = writePyramid();
+        buffer.limit((int) TilePyramidFormat.getDataPosition(COLUMNS.length, TILE_COUNT) - 1);
+        assertInvalid(buffer);
+
+        buffer.limit(TilePyramidFormat.HEADER_SIZE - 1);
+        assertInvalid(buffer);
+    }
+
+    @Test
+    public void entriesOutsideTheFile_areRejected() throws Exception {
+        ByteBuffer buffer = writePyramid();
+        TilePyramidFormat.Header header = TilePyramidFormat.readHeader(buffer);
+
+        int position = header.getEntryPosition(1);
+        buffer.putLong(position, buffer.limit() - ENTRY_LENGTH + 1);
+        assertInvalidEntry(buffer, position);
+
+        // Offsets past a single mapping can't be addressed
+        buffer.putLong(position, TilePyramidFormat.MAX_FILE_SIZE + 1);
+        assertInvalidEntry(buffer, position);
+
+        buffer.putLong(position, -1L);
+        assertInvalidEntry(buffer, position);
+    }
+
+    /**
+     * Writes a pyramid the way {@link TilePyramidWriter} does, where every entry is
+     * {@link #ENTRY_LENGTH} bytes and its width is its index.
+     */
+    private static ByteBuffer writePyramid() {
+        long dataPosition = TilePyramidFormat.getDataPosition(COLUMNS.length, TILE_COUNT);
+        ByteBuffer buffer = ByteBuffer.allocate((int) dataPosition + (TILE_COUNT + 1) * ENTRY_LENGTH);
+        TilePyramidFormat.putHeader(buffer, 1200, 700, 512, 8, COLUMNS, ROWS);
+        assertEquals(TilePyramidFormat.getIndexPosition(COLUMNS.length), buffer.position());
+        for (int entry = 0; entry <= TILE_COUNT; entry++) {
+            TilePyramidFormat.putEntry(buffer, dataPosition + entry * ENTRY_LENGTH, ENTRY_LENGTH, entry, 512);
+        }
+        assertEquals(dataPosition, buffer.position());
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void assertEntry(ByteBuffer buffer, TilePyramidFormat.Header header, int entry,
+                                    long dataPosition, int expected) throws IOException {
+        int position = header.getEntryPosition(entry);
+        assertEquals(dataPosition + expected * ENTRY_LENGTH, TilePyramidFormat.getEntryOffset(buffer, position));
+        assertEquals(ENTRY_LENGTH, TilePyramidFormat.getEntryLength(buffer, position));
+        assertEquals(expected, TilePyramidFormat.getEntryWidth(buffer, position));
+        assertEquals(512, TilePyramidFormat.getEntryHeight(buffer, position));
+    }
+
+    private static void assertInvalid(ByteBuffer buffer) {
+        try {
+            TilePyramidFormat.readHeader(buffer);
+            fail("Expected an invalid pyramid");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static void assertInvalidEntry(ByteBuffer buffer, int position) {
+        try {
+            TilePyramidFormat.getEntryOffset(buffer, position);
+            fail("Expected an invalid entry");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.metagalactic.viewport;
+
+/**
+ * The viewport math behind {@code ScalableImageView}: fitting content into a view, centering it,
+ * clamping scales and keeping translations in bounds. Everything works on primitive floats and has
+ * no Android dependency so that it can be benchmarked and tested on a plain JVM.
+ * <p>
+ * The transform applied to the content is always a fit-center base transform, followed by a scale
+ * around the view center, followed by a translation.
+ */
+public final class ViewportTransform {
+
+    /**
+     * The scale value for the default, unscaled state
+     */
+    public static final float NO_SCALE = 1f;
+
+    /**
+     * Indicates no pan or translation value
+     */
+    public static final float NO_TRANSLATION = 0f;
+
+    private ViewportTransform() {
+        // No instances
+    }
+
+    /**
+     * Calculates the scale factor needed to scale content to fill one view dimension while the
+     * other content dimension maintains the correct aspect ratio while remaining inside the view.
+     *
+     * @return the scale factor, or {@link #NO_SCALE} if any dimension is empty
+     */
+    public static float getFitCenterScale(int contentWidth, int contentHeight, int viewWidth, int viewHeight) {
+        if (contentWidth <= 0 || contentHeight <= 0 || viewWidth <= 0 || viewHeight <= 0) {
+            return NO_SCALE;
+        }
+
+        float xScaling = ((float) viewWidth) / contentWidth;
+        float yScaling = ((float) viewHeight) / contentHeight;
+
+        // Always just pick the smallest dimension
+        return Math.min(xScaling, yScaling);
+    }
+
+    /**
+     * Calculates the translation along one axis necessary to center content of the given size
+     * after it has been scaled by the given factor.
+     *
+     * @param contentSize the unscaled content size along the axis
+     * @param viewSize    the view size along the axis, without padding
+     * @param scale       a scale factor that would be applied to the content before centering
+     * @return the translation
+     */
+    public static float getCenteringTranslation(int contentSize, int viewSize, float scale) {
+        return (viewSize - contentSize * scale) / 2f + 0.5f;
+    }
+
+    /**
+     * Given a proposed translation along one axis, this will check to ensure that (a) it will not
+     * translate the content if it has not scaled to larger than the view and (b) it will not
+     * translate the content edges back inside the view bounds if it has scaled larger than the
+     * view.
+     *
+     * @param translation  the proposed translation
+     * @param contentStart the start edge of the content with the current transform applied
+     * @param contentEnd   the end edge of the content with the current transform applied
+     * @param viewStart    the start edge of the view
+     * @param viewEnd      the end edge of the view
+     * @return the proposed translation if satisfying all criteria, else a corrected version that
+     * satisfies them
+     */
+    public static float getTranslationInBounds(float translation,
+                                               float contentStart,
+                                               float contentEnd,
+                                               float viewStart,
+                                               float viewEnd) {
+        if (contentEnd - contentStart < viewEnd - viewStart) {
+            // Don't allow additional translations if still within the view bounds
+            return NO_TRANSLATION;
+        }
+
+        // Don't translate more than the current spacing between the content and view edges
+        if (translation > 0) {
+            float startGap = viewStart - contentStart;
+            return translation < startGap ? translation : startGap;
+        } else {
+            float endGap = viewEnd - contentEnd;
+            return translation > endGap ? translation : endGap;
+        }
+    }
+
+    /**
+     * Applies a relative scale factor to a scale and keeps the result within the given limits.
+     *
+     * @param oldScale the current scale
+     * @param factor   the relative scale factor, e.g. from a pinch
+     * @param minScale the minimum allowed scale
+     * @param maxScale the maximum allowed scale
+     * @return the new scale
+     */
+    public static float getNewScale(float oldScale, float factor, float minScale, float maxScale) {
+        return Math.max(minScale, Math.min(oldScale * factor, maxScale));
+    }
+
+    /**
+     * Calculates the translation along one axis that keeps a focus point in place when changing
+     * from one scale to another, with scaling applied around the view center.
+     *
+     * @param focus       the focus point, in view coordinates
+     * @param center      the scaling center, in view coordinates
+     * @param translation the current translation
+     * @param oldScale    the current scale
+     * @param newScale    the new scale
+     * @return the translation for the new scale, before bounds are applied
+     */
+    public static float getTranslationForFocus(float focus,
+                                               float center,
+                                               float translation,
+                                               float oldScale,
+                                               float newScale) {
+        return focus - center - newScale / oldScale * (focus - translation - center);
+    }
+}
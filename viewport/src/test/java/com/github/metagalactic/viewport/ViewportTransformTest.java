@@ -0,0 +1,107 @@
+package com.github.metagalactic.viewport;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ViewportTransformTest {
+
+    private static final float DELTA = 1e-3f;
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void fitCenterScale_fitsTheLimitingDimension() throws Exception {
+        assertEquals(0.5f, ViewportTransform.getFitCenterScale(2000, 1000, 1000, 1000), DELTA);
+        assertEquals(2f, ViewportTransform.getFitCenterScale(100, 400, 1000, 800), DELTA);
+    }
+
+    @Test
+    public void fitCenterScale_isUnscaledForEmptyDimensions() throws Exception {
+        assertEquals(ViewportTransform.NO_SCALE, ViewportTransform.getFitCenterScale(0, 100, 100, 100), DELTA);
+        assertEquals(ViewportTransform.NO_SCALE, ViewportTransform.getFitCenterScale(100, 100, 100, -1), DELTA);
+    }
+
+    @Test
+    public void fitCenterScale_alwaysFitsInsideTheView() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < ITERATIONS; i++) {
+            int contentWidth = 1 + random.nextInt(10000);
+            int contentHeight = 1 + random.nextInt(10000);
+            int viewWidth = 1 + random.nextInt(4000);
+            int viewHeight = 1 + random.nextInt(4000);
+            float scale = ViewportTransform.getFitCenterScale(contentWidth, contentHeight, viewWidth, viewHeight);
+
+            assertTrue(contentWidth * scale <= viewWidth + DELTA * viewWidth);
+            assertTrue(contentHeight * scale <= viewHeight + DELTA * viewHeight);
+            // ...and touches at least one of the edges
+            assertTrue(Math.abs(contentWidth * scale - viewWidth) <= DELTA * viewWidth ||
+                    Math.abs(contentHeight * scale - viewHeight) <= DELTA * viewHeight);
+        }
+    }
+
+    @Test
+    public void centeringTranslation_centersScaledContent() throws Exception {
+        assertEquals(250.5f, ViewportTransform.getCenteringTranslation(250, 1000, 2f), DELTA);
+        assertEquals(0.5f, ViewportTransform.getCenteringTranslation(500, 1000, 2f), DELTA);
+    }
+
+    @Test
+    public void translationInBounds_isZeroForContentSmallerThanTheView() throws Exception {
+        assertEquals(ViewportTransform.NO_TRANSLATION,
+                ViewportTransform.getTranslationInBounds(50f, 100f, 900f, 0f, 1000f), DELTA);
+    }
+
+    @Test
+    public void translationInBounds_stopsAtTheEdges() throws Exception {
+        // Content spans -500..1500 in a 0..1000 view
+        assertEquals(200f, ViewportTransform.getTranslationInBounds(200f, -500f, 1500f, 0f, 1000f), DELTA);
+        assertEquals(500f, ViewportTransform.getTranslationInBounds(800f, -500f, 1500f, 0f, 1000f), DELTA);
+        assertEquals(-500f, ViewportTransform.getTranslationInBounds(-800f, -500f, 1500f, 0f, 1000f), DELTA);
+    }
+
+    @Test
+    public void translationInBounds_neverUncoversTheView() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < ITERATIONS; i++) {
+            float viewEnd = 100f + random.nextFloat() * 2000f;
+            float contentSize = viewEnd * (1f + random.nextFloat() * 5f);
+            float contentStart = viewEnd - contentSize + random.nextFloat() * (contentSize - viewEnd);
+            float contentEnd = contentStart + contentSize;
+            float translation = (random.nextFloat() - 0.5f) * 4f * contentSize;
+
+            float corrected = ViewportTransform.getTranslationInBounds(translation, contentStart, contentEnd, 0f, viewEnd);
+
+            assertTrue(contentStart + corrected <= DELTA);
+            assertTrue(contentEnd + corrected >= viewEnd - DELTA);
+            assertTrue(Math.abs(corrected) <= Math.abs(translation) + DELTA);
+        }
+    }
+
+    @Test
+    public void newScale_isClamped() throws Exception {
+        assertEquals(2f, ViewportTransform.getNewScale(1f, 2f, 1f, 3f), DELTA);
+        assertEquals(3f, ViewportTransform.getNewScale(2f, 2f, 1f, 3f), DELTA);
+        assertEquals(1f, ViewportTransform.getNewScale(1.5f, 0.5f, 1f, 3f), DELTA);
+    }
+
+    @Test
+    public void translationForFocus_keepsTheFocusInPlace() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < ITERATIONS; i++) {
+            float center = 500f;
+            float focus = random.nextFloat() * 1000f;
+            float translation = (random.nextFloat() - 0.5f) * 1000f;
+            float oldScale = 1f + random.nextFloat() * 2f;
+            float newScale = 1f + random.nextFloat() * 2f;
+
+            // A content point under the focus, relative to the center before translation
+            float point = (focus - translation - center) / oldScale;
+            float newTranslation = ViewportTransform.getTranslationForFocus(focus, center, translation, oldScale, newScale);
+
+            assertEquals(focus, center + point * newScale + newTranslation, 0.01f);
+        }
+    }
+}